@@ -0,0 +1,44 @@
+package jp.ac.jec.jz.bluetoothsample2020;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * BluetoothService が使う通信路
+ * 接続・ストリーム取得・切断だけを持つ。RFCOMM / L2CAP のソケットやテスト用の偽物を差し替えられるようにするためのもの。
+ * close() は別スレッドから呼ばれ、ブロック中の connect() / read() を IOException で抜けさせること。
+ */
+public interface BluetoothTransport extends Closeable
+{
+    int DEFAULT_RECEIVE_BUFFER_SIZE = 1024;
+
+    /**
+     * 通信路の生成
+     */
+    interface Factory
+    {
+        BluetoothTransport create( BluetoothDevice device ) throws IOException;
+    }
+
+    void connect() throws IOException;
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * 受信バッファの大きさ（connect() 後に呼ばれる）
+     * １回の read() で受け取れるパケットの最大長にしておくと、read() の回数が減る。
+     */
+    default int getReceiveBufferSize()
+    {
+        return DEFAULT_RECEIVE_BUFFER_SIZE;
+    }
+
+    @Override
+    void close() throws IOException;
+}
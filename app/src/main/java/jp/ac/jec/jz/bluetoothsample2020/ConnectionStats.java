@@ -0,0 +1,189 @@
+package jp.ac.jec.jz.bluetoothsample2020;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 接続ごとのデータ通信カウンタ
+ * 受信スレッド・送信側など複数スレッドから加算されるので、ストライプ化された LongAdder で競合を避ける。
+ * 加算時にオブジェクトは生成しない。整形は dump() の時だけ。
+ * BluetoothService は接続のたびに作り直されるので、カウンタはデバイスアドレス単位で保持する（再接続回数もここで数える）。
+ */
+public class ConnectionStats
+{
+    // 定数
+    public static final long WRITER_STALL_NANOS = 50L * 1000 * 1000;    // これ以上かかった書き込みを「詰まり」とみなす
+
+    // デバイスアドレス -> カウンタ
+    private static final ConcurrentHashMap<String, ConnectionStats> sStats = new ConcurrentHashMap<>();
+
+    // メンバー変数
+    private final String mAddress;
+    private final LongAdder mBytesIn       = new LongAdder();
+    private final LongAdder mBytesOut      = new LongAdder();
+    private final LongAdder mFramesIn      = new LongAdder();
+    private final LongAdder mFramesOut     = new LongAdder();
+    private final LongAdder mReadCalls     = new LongAdder();
+    private final LongAdder mDroppedFrames = new LongAdder();
+    private final LongAdder mWriterStalls  = new LongAdder();
+    private final LongAdder mConnects      = new LongAdder();
+    private final AtomicInteger mTxQueueDepth    = new AtomicInteger();
+    private final AtomicInteger mTxQueueDepthMax = new AtomicInteger();
+    private final AtomicInteger mRxQueueDepth    = new AtomicInteger();
+    private final AtomicInteger mRxQueueDepthMax = new AtomicInteger();
+
+    /**
+     * デバイスアドレスに対応するカウンタを取得する（無ければ作成）
+     * @param address デバイスアドレス
+     * @return カウンタ
+     */
+    public static ConnectionStats forAddress( String address )
+    {
+        ConnectionStats stats = sStats.get( address );
+        if( null == stats ) {
+            stats = new ConnectionStats( address );
+            ConnectionStats previous = sStats.putIfAbsent( address, stats );
+            if( null != previous ) {
+                stats = previous;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * 全接続のカウンタ
+     */
+    public static Collection<ConnectionStats> getAll()
+    {
+        return new ArrayList<>( sStats.values() );
+    }
+
+    /**
+     * 全接続のカウンタを出力する（dumpsys と診断画面で共用）
+     * @param writer 出力先
+     * @param prefix 行頭に付ける文字列
+     */
+    public static void dumpAll( PrintWriter writer, String prefix )
+    {
+        Collection<ConnectionStats> all = getAll();
+        if( all.isEmpty() ) {
+            writer.print( prefix );
+            writer.println( "(no connections)" );
+            return;
+        }
+        for( ConnectionStats stats : all ) {
+            stats.dump( writer, prefix );
+        }
+    }
+
+    private ConnectionStats( String address )
+    {
+        mAddress = address;
+    }
+
+    /// カウンタの加算 ///////////////////////////////////////////////////////////
+    /**
+     * 接続開始（２回目以降は再接続として数える）
+     */
+    public void onConnect()
+    {
+        mConnects.increment();
+    }
+
+    /**
+     * read() １回分
+     * @param bytes 読めたバイト数
+     */
+    public void onRead( int bytes )
+    {
+        mReadCalls.increment();
+        if( 0 < bytes ) {
+            mBytesIn.add( bytes );
+            mFramesIn.increment();
+        }
+    }
+
+    /**
+     * 送信１フレーム分
+     * @param bytes          送信バイト数
+     * @param elapsedNanos   書き込みにかかった時間
+     */
+    public void onWrite( int bytes, long elapsedNanos )
+    {
+        mBytesOut.add( bytes );
+        mFramesOut.increment();
+        if( WRITER_STALL_NANOS <= elapsedNanos ) {
+            mWriterStalls.increment();
+        }
+    }
+
+    /**
+     * 受信・送信できずに捨てたフレーム
+     */
+    public void onDroppedFrame()
+    {
+        mDroppedFrames.increment();
+    }
+
+    /**
+     * 送信キューの深さ
+     */
+    public void setTxQueueDepth( int depth )
+    {
+        mTxQueueDepth.set( depth );
+        updateMax( mTxQueueDepthMax, depth );
+    }
+
+    /**
+     * 受信キューの深さ
+     */
+    public void setRxQueueDepth( int depth )
+    {
+        mRxQueueDepth.set( depth );
+        updateMax( mRxQueueDepthMax, depth );
+    }
+
+    private static void updateMax( AtomicInteger max, int value )
+    {
+        int current = max.get();
+        while( value > current && !max.compareAndSet( current, value ) ) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * read() の呼び出し回数
+     */
+    public long getReadCalls()
+    {
+        return mReadCalls.sum();
+    }
+
+    /// 出力 ////////////////////////////////////////////////////////////////////
+    /**
+     * カウンタを出力する
+     * @param writer 出力先
+     * @param prefix 行頭に付ける文字列
+     */
+    public void dump( PrintWriter writer, String prefix )
+    {
+        long bytesIn   = mBytesIn.sum();
+        long readCalls = mReadCalls.sum();
+        long connects  = mConnects.sum();
+
+        writer.print( prefix ); writer.println( "Connection " + mAddress );
+        writer.print( prefix ); writer.println( "  bytes in/out      : " + bytesIn + " / " + mBytesOut.sum() );
+        writer.print( prefix ); writer.println( "  frames in/out     : " + mFramesIn.sum() + " / " + mFramesOut.sum() );
+        writer.print( prefix ); writer.println( "  read calls        : " + readCalls );
+        writer.print( prefix ); writer.println( "  mean bytes/read   : " + ( 0 == readCalls ? 0 : bytesIn / readCalls ) );
+        writer.print( prefix ); writer.println( "  tx queue depth    : " + mTxQueueDepth.get() + " (max " + mTxQueueDepthMax.get() + ")" );
+        writer.print( prefix ); writer.println( "  rx queue depth    : " + mRxQueueDepth.get() + " (max " + mRxQueueDepthMax.get() + ")" );
+        writer.print( prefix ); writer.println( "  dropped frames    : " + mDroppedFrames.sum() );
+        writer.print( prefix ); writer.println( "  writer stalls     : " + mWriterStalls.sum() );
+        writer.print( prefix ); writer.println( "  reconnects        : " + Math.max( 0, connects - 1 ) );
+    }
+}
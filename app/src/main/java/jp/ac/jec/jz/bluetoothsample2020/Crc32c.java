@@ -0,0 +1,79 @@
+package jp.ac.jec.jz.bluetoothsample2020;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C（Castagnoli）
+ * newChecksum() は、java.util.zip.CRC32C（CPU の CRC32 命令を使う実装）があればそれを返し、
+ * 無い端末（Android 14 未満）ではこのクラスのテーブル方式の実装を返す。どちらも同じ値になる。
+ */
+public class Crc32c implements Checksum
+{
+    private static final int POLYNOMIAL = 0x82F63B78;    // 反転表現
+    private static final int[] TABLE = new int[256];
+    static {
+        for( int i = 0; i < 256; i++ ) {
+            int crc = i;
+            for( int bit = 0; bit < 8; bit++ ) {
+                crc = ( 0 != ( crc & 1 ) ) ? ( crc >>> 1 ) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLE[i] = crc;
+        }
+    }
+
+    private static final Class<?> PLATFORM_CRC32C = findPlatformCrc32c();
+
+    private static Class<?> findPlatformCrc32c()
+    {
+        try {
+            return Class.forName( "java.util.zip.CRC32C" );
+        } catch( ClassNotFoundException e ) {
+            return null;
+        }
+    }
+
+    /**
+     * CRC32C の計算器を作る（使える場合はプラットフォームの実装）
+     */
+    public static Checksum newChecksum()
+    {
+        if( null != PLATFORM_CRC32C ) {
+            try {
+                return (Checksum)PLATFORM_CRC32C.newInstance();
+            } catch( ReflectiveOperationException e ) {
+                // テーブル方式にフォールバック
+            }
+        }
+        return new Crc32c();
+    }
+
+    private int mCrc = 0xFFFFFFFF;
+
+    @Override
+    public void update( int b )
+    {
+        mCrc = ( mCrc >>> 8 ) ^ TABLE[( mCrc ^ b ) & 0xFF];
+    }
+
+    @Override
+    public void update( byte[] buffer, int offset, int length )
+    {
+        int crc = mCrc;
+        for( int i = offset; i < offset + length; i++ ) {
+            crc = ( crc >>> 8 ) ^ TABLE[( crc ^ buffer[i] ) & 0xFF];
+        }
+        mCrc = crc;
+    }
+
+    @Override
+    public long getValue()
+    {
+        return ( ~mCrc ) & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset()
+    {
+        mCrc = 0xFFFFFFFF;
+    }
+}
@@ -125,11 +125,19 @@ public class DeviceListActivity extends AppCompatActivity implements AdapterView
     private static final int    REQUEST_ENABLEBLUETOOTH = 1; // Bluetooth機能の有効化要求時の識別コード
     public static final  String EXTRAS_DEVICE_NAME      = "DEVICE_NAME";
     public static final  String EXTRAS_DEVICE_ADDRESS   = "DEVICE_ADDRESS";
+    // ターゲットスキャン用（呼び出し側が指定。どれか１つに一致したら、スキャンを止めて即座に戻る）
+    public static final  String EXTRAS_TARGET_ADDRESSES      = "TARGET_ADDRESSES";        // String[]
+    public static final  String EXTRAS_TARGET_NAME_PATTERNS  = "TARGET_NAME_PATTERNS";    // String[]（正規表現）
+    public static final  String EXTRAS_TARGET_SERVICE_UUIDS  = "TARGET_SERVICE_UUIDS";    // String[]
+    public static final  String EXTRAS_RESCAN_WINDOW_MILLIS   = "RESCAN_WINDOW_MILLIS";     // long
+    public static final  String EXTRAS_RESCAN_INTERVAL_MILLIS = "RESCAN_INTERVAL_MILLIS";   // long
 
     /// メンバー変数 ///////////////////////////////////////////////////////////////////
     private BluetoothAdapter  mBluetoothAdapter;        // BluetoothAdapter : Bluetooth処理で必要
     private DeviceListAdapter mDeviceListAdapter;    // リストビューの内容
     private boolean mScanning = false;                // スキャン中かどうかのフラグ
+    private DiscoveryFilter    mDiscoveryFilter;       // ターゲットスキャンの条件
+    private DiscoveryScheduler mDiscoveryScheduler;    // ターゲットスキャン時の間欠スキャン
 
     /**
      * ブロードキャストレシーバー
@@ -146,6 +154,12 @@ public class DeviceListActivity extends AppCompatActivity implements AdapterView
             if( BluetoothDevice.ACTION_FOUND.equals( action ) ) {
                 final BluetoothDevice device = intent.getParcelableExtra( BluetoothDevice.EXTRA_DEVICE );
                 runOnUiThread( () -> {
+                        if( mDiscoveryFilter.matches( device ) ) {
+                            // 目的のデバイスが見つかったら、残りの問い合わせを待たずに戻る
+                            stopScan();
+                            returnDevice( device );
+                            return;
+                        }
                         mDeviceListAdapter.addDevice( device );
                     });
                 return;
@@ -153,6 +167,9 @@ public class DeviceListActivity extends AppCompatActivity implements AdapterView
             // Bluetooth端末検索終了
             if( BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals( action ) ) {
                 runOnUiThread( () -> {
+                    if( mDiscoveryScheduler.isRunning() ) {
+                        return;    // 間欠スキャン中は、次の問い合わせまでスキャン中のまま
+                    }
                     mScanning = false;
                     invalidateOptionsMenu();    // メニューの更新
                 });
@@ -182,6 +199,13 @@ public class DeviceListActivity extends AppCompatActivity implements AdapterView
             finish();    // アプリ終了宣言
             return;
         }
+
+        // ターゲットスキャンの設定
+        Intent intent = getIntent();
+        mDiscoveryFilter = DiscoveryFilter.fromIntent( intent );
+        mDiscoveryScheduler = new DiscoveryScheduler( mBluetoothAdapter );
+        mDiscoveryScheduler.setDutyCycle( intent.getLongExtra( EXTRAS_RESCAN_WINDOW_MILLIS, DiscoveryScheduler.DEFAULT_WINDOW_MILLIS ),
+                                          intent.getLongExtra( EXTRAS_RESCAN_INTERVAL_MILLIS, DiscoveryScheduler.DEFAULT_INTERVAL_MILLIS ) );
     }
 
     /// events /////////////////////////////////////////////////////////////////////////////
@@ -200,6 +224,18 @@ public class DeviceListActivity extends AppCompatActivity implements AdapterView
         if( null == device ) {
             return;
         }
+        returnDevice( device );
+    }
+
+    /**
+     * 選択（または検出）したデバイスを呼び出し元に返して終了する
+     * @param device
+     */
+    private void returnDevice( BluetoothDevice device )
+    {
+        if( isFinishing() ) {
+            return;    // 既に返却済み
+        }
         // 戻り値の設定
         Intent intent = new Intent();
         intent.putExtra( EXTRAS_DEVICE_NAME, device.getName() );
@@ -289,7 +325,11 @@ public class DeviceListActivity extends AppCompatActivity implements AdapterView
 
         // スキャンの開始
         mScanning = true;
-        mBluetoothAdapter.startDiscovery();	// 約 12 秒間の問い合わせのスキャンが行われる
+        if( mDiscoveryFilter.isEmpty() ) {
+            mBluetoothAdapter.startDiscovery();	// 約 12 秒間の問い合わせのスキャンが行われる
+        } else {
+            mDiscoveryScheduler.start();    // 見つかるまで間欠スキャンを繰り返す
+        }
 
         // メニューの更新
         invalidateOptionsMenu();
@@ -301,6 +341,12 @@ public class DeviceListActivity extends AppCompatActivity implements AdapterView
     private void stopScan()
     {
         // スキャンの停止
+        if( mDiscoveryScheduler.isRunning() ) {
+            mDiscoveryScheduler.stop();
+            // 問い合わせの合間だと ACTION_DISCOVERY_FINISHED が来ないので、ここでメニューを戻す
+            mScanning = false;
+            invalidateOptionsMenu();
+        }
         mBluetoothAdapter.cancelDiscovery();
     }
 
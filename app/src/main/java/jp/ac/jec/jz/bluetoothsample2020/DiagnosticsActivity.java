@@ -0,0 +1,113 @@
+package jp.ac.jec.jz.bluetoothsample2020;
+
+import androidx.appcompat.app.AppCompatActivity;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * 診断画面
+ * 接続ごとの通信カウンタ（ConnectionStats）を定期的に表示する。dumpsys の出力と同じ内容。
+ * メニューからトレースログ（TraceLog）を logcat とファイルに書き出せる。
+ */
+public class DiagnosticsActivity extends AppCompatActivity {
+
+    // 定数 ////////////////////////////////////////////////////////////////////////////
+    private static final long REFRESH_INTERVAL_MILLIS = 1000;    // 表示の更新周期
+    private static final String TRACE_TAG       = "BluetoothTrace";    // トレース出力時の logcat タグ
+    private static final String TRACE_FILE_NAME = "bluetooth_trace.txt";
+
+    /// メンバー変数 ///////////////////////////////////////////////////////////////////
+    private TextView mTextView_Stats;    // カウンタ表示
+    private final Handler mHandler = new Handler( Looper.getMainLooper() );
+
+    // 表示の更新（周期実行）
+    private final Runnable mRefresh = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            StringWriter stringWriter = new StringWriter();
+            PrintWriter writer = new PrintWriter( stringWriter );
+            ConnectionStats.dumpAll( writer, "" );
+            writer.flush();
+            mTextView_Stats.setText( stringWriter.toString() );
+            mHandler.postDelayed( this, REFRESH_INTERVAL_MILLIS );
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_diagnostics);
+
+        mTextView_Stats = findViewById( R.id.textview_stats );
+    }
+
+    // 初回表示時、および、ポーズからの復帰時
+    @Override
+    protected void onResume()
+    {
+        super.onResume();
+
+        mHandler.post( mRefresh );
+    }
+
+    // バックグラウンドに追いやられた時
+    @Override
+    protected void onPause()
+    {
+        super.onPause();
+
+        mHandler.removeCallbacks( mRefresh );
+    }
+
+    /// メニュー関連 ///////////////////////////////////////////////////////
+    // オプションメニュー作成時の処理
+    @Override
+    public boolean onCreateOptionsMenu( Menu menu )
+    {
+        getMenuInflater().inflate( R.menu.activity_diagnostics, menu );
+        return true;
+    }
+
+    // オプションメニューのアイテム選択時の処理
+    @Override
+    public boolean onOptionsItemSelected( MenuItem item )
+    {
+        switch( item.getItemId() )
+        {
+            case R.id.menuitem_dumptrace:
+                dumpTrace();
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * トレースログを logcat とアプリ専用領域のファイルに書き出す
+     */
+    private void dumpTrace()
+    {
+        TraceLog.dumpToLogcat( TRACE_TAG );
+
+        File file = new File( getExternalFilesDir( null ), TRACE_FILE_NAME );
+        try {
+            TraceLog.dumpToFile( file );
+            Toast.makeText( this, file.getPath(), Toast.LENGTH_SHORT ).show();
+        } catch( IOException e ) {
+            Log.e( TRACE_TAG, "Failed : TraceLog.dumpToFile()", e );
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package jp.ac.jec.jz.bluetoothsample2020;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.Intent;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * ターゲットスキャン用の条件
+ * アドレス・デバイス名パターン・サービスUUID のいずれかに一致したデバイスを「目的のデバイス」とみなす。
+ * 条件が１つも無い場合は、通常のスキャン（全件表示）になる。
+ */
+public class DiscoveryFilter
+{
+    // 定数
+    private static final String TAG = "DiscoveryFilter";
+
+    // メンバー変数
+    private final Set<String> mAddresses    = new HashSet<>();    // 大文字で保持
+    private final Pattern[]   mNamePatterns;
+    private final Set<UUID>   mServiceUuids = new HashSet<>();
+
+    /**
+     * constructor
+     * 呼び出し元のインテントから来る値なので、不正な要素（null・正規表現の誤り・UUID の書式違い）は
+     * 例外にせず、ログに出して読み飛ばす。
+     * @param addresses    デバイスアドレス（"00:11:22:AA:BB:CC" 形式）。null可
+     * @param namePatterns デバイス名の正規表現。null可
+     * @param serviceUuids サービスUUID文字列。null可
+     */
+    public DiscoveryFilter( String[] addresses, String[] namePatterns, String[] serviceUuids )
+    {
+        if( null != addresses ) {
+            for( String address : addresses ) {
+                if( null != address ) {
+                    mAddresses.add( address.toUpperCase( Locale.US ) );
+                }
+            }
+        }
+        List<Pattern> patterns = new ArrayList<>();
+        if( null != namePatterns ) {
+            for( String namePattern : namePatterns ) {
+                if( null == namePattern ) {
+                    continue;
+                }
+                try {
+                    patterns.add( Pattern.compile( namePattern ) );
+                } catch( PatternSyntaxException e ) {
+                    Log.w( TAG, "ignored invalid name pattern : " + namePattern, e );
+                }
+            }
+        }
+        mNamePatterns = patterns.toArray( new Pattern[0] );
+        if( null != serviceUuids ) {
+            for( String uuid : serviceUuids ) {
+                if( null == uuid ) {
+                    continue;
+                }
+                try {
+                    mServiceUuids.add( UUID.fromString( uuid ) );
+                } catch( IllegalArgumentException e ) {
+                    Log.w( TAG, "ignored invalid service uuid : " + uuid, e );
+                }
+            }
+        }
+    }
+
+    /**
+     * インテントの extras から条件を作成する
+     * @param intent DeviceListActivity の起動インテント
+     * @return 条件（指定が無ければ isEmpty() が true）
+     */
+    public static DiscoveryFilter fromIntent( Intent intent )
+    {
+        return new DiscoveryFilter( intent.getStringArrayExtra( DeviceListActivity.EXTRAS_TARGET_ADDRESSES ),
+                                    intent.getStringArrayExtra( DeviceListActivity.EXTRAS_TARGET_NAME_PATTERNS ),
+                                    intent.getStringArrayExtra( DeviceListActivity.EXTRAS_TARGET_SERVICE_UUIDS ) );
+    }
+
+    /**
+     * 条件が１つも無いか
+     */
+    public boolean isEmpty()
+    {
+        return mAddresses.isEmpty() && 0 == mNamePatterns.length && mServiceUuids.isEmpty();
+    }
+
+    /**
+     * 目的のデバイスかどうか
+     * サービスUUIDは、ACTION_FOUND の時点ではキャッシュ済み（ペアリング済みなど）のものしか取れない。
+     * 問い合わせ中に SDP を投げるとスキャンが遅くなるので、ここではキャッシュだけを見る。
+     * @param device 検出されたデバイス
+     * @return 一致すれば true
+     */
+    public boolean matches( BluetoothDevice device )
+    {
+        if( null == device || isEmpty() ) {
+            return false;
+        }
+        if( mAddresses.contains( device.getAddress().toUpperCase( Locale.US ) ) ) {
+            return true;
+        }
+        String name = device.getName();
+        if( null != name ) {
+            for( Pattern pattern : mNamePatterns ) {
+                if( pattern.matcher( name ).matches() ) {
+                    return true;
+                }
+            }
+        }
+        if( !mServiceUuids.isEmpty() ) {
+            ParcelUuid[] uuidList = device.getUuids();
+            if( null != uuidList ) {
+                for( ParcelUuid id : uuidList ) {
+                    if( mServiceUuids.contains( id.getUuid() ) ) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+}
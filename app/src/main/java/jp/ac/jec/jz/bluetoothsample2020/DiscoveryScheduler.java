@@ -0,0 +1,129 @@
+package jp.ac.jec.jz.bluetoothsample2020;
+
+import android.bluetooth.BluetoothAdapter;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * 間欠スキャン（デューティサイクル）のスケジューラ
+ * interval ごとに問い合わせを開始し、window 経過で打ち切る。
+ * 問い合わせ中は RFCOMM の接続が遅くなり、電波も使うので、必要な時間だけ動かす。
+ */
+public class DiscoveryScheduler
+{
+    // 定数
+    private static final String TAG = "DiscoveryScheduler";
+    public static final long DEFAULT_WINDOW_MILLIS   = 5000;     // 1回の問い合わせ時間
+    public static final long DEFAULT_INTERVAL_MILLIS = 30000;    // 問い合わせ開始の周期
+    private static final long MAX_WINDOW_MILLIS      = 12000;    // startDiscovery() 自体が約 12 秒で終わる
+
+    // メンバー変数
+    private final BluetoothAdapter mBluetoothAdapter;
+    private final Handler mHandler = new Handler( Looper.getMainLooper() );
+    private long    mWindowMillis   = DEFAULT_WINDOW_MILLIS;
+    private long    mIntervalMillis = DEFAULT_INTERVAL_MILLIS;
+    private boolean mRunning        = false;
+
+    // 問い合わせの開始（次の周期も予約する）
+    private final Runnable mStartDiscovery = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            if( !mRunning ) {
+                return;
+            }
+            mBluetoothAdapter.startDiscovery();
+            mHandler.postDelayed( mStopDiscovery, mWindowMillis );
+            mHandler.postDelayed( this, mIntervalMillis );
+        }
+    };
+
+    // 問い合わせの打ち切り
+    private final Runnable mStopDiscovery = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            mBluetoothAdapter.cancelDiscovery();
+        }
+    };
+
+    /**
+     * constructor
+     * @param adapter BluetoothAdapter
+     */
+    public DiscoveryScheduler( BluetoothAdapter adapter )
+    {
+        mBluetoothAdapter = adapter;
+    }
+
+    /**
+     * 周期の設定（次の start() から有効）
+     * 値はインテントの extras から来るので、範囲外でも例外にせず、補正してログに出す。
+     * @param windowMillis   1回の問い合わせ時間（0 以下は既定値、12秒を超える分は意味がないので切り詰める）
+     * @param intervalMillis 問い合わせ開始の周期（window 未満なら window に合わせる）
+     */
+    public void setDutyCycle( long windowMillis, long intervalMillis )
+    {
+        long window = ( 0 < windowMillis ) ? Math.min( windowMillis, MAX_WINDOW_MILLIS ) : DEFAULT_WINDOW_MILLIS;
+        long interval = Math.max( intervalMillis, window );
+        if( window != windowMillis || interval != intervalMillis ) {
+            Log.w( TAG, "duty cycle adjusted : window " + windowMillis + " -> " + window
+                        + ", interval " + intervalMillis + " -> " + interval );
+        }
+        mWindowMillis   = window;
+        mIntervalMillis = interval;
+    }
+
+    /**
+     * 1回の問い合わせ時間（補正後）
+     */
+    public long getWindowMillis()
+    {
+        return mWindowMillis;
+    }
+
+    /**
+     * 問い合わせ開始の周期（補正後）
+     */
+    public long getIntervalMillis()
+    {
+        return mIntervalMillis;
+    }
+
+    /**
+     * 間欠スキャンの開始（すぐに１回目の問い合わせを行う）
+     */
+    public void start()
+    {
+        if( mRunning ) {
+            return;
+        }
+        mRunning = true;
+        mHandler.post( mStartDiscovery );
+    }
+
+    /**
+     * 間欠スキャンの停止
+     */
+    public void stop()
+    {
+        if( !mRunning ) {
+            return;
+        }
+        mRunning = false;
+        mHandler.removeCallbacks( mStartDiscovery );
+        mHandler.removeCallbacks( mStopDiscovery );
+        mBluetoothAdapter.cancelDiscovery();
+    }
+
+    /**
+     * 間欠スキャン中かどうか
+     */
+    public boolean isRunning()
+    {
+        return mRunning;
+    }
+}
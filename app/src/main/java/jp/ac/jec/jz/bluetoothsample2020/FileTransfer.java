@@ -0,0 +1,687 @@
+package jp.ac.jec.jz.bluetoothsample2020;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Checksum;
+
+/**
+ * 再開可能なファイル転送（ファームウェアの書き込み・ログの吸い出し用）
+ * ファイルを固定長のチャンクに分け、ACK を待たずに window 個まで送る（スライディングウィンドウ）。
+ * チャンクごとに CRC32C を付け、受信側で不一致なら NACK を返して、そこから送り直す。
+ * 接続ロスト後は、新しい接続で Sender / Receiver を作り直すと、受信側に書き込み済みの位置から再開する。
+ * 再開するのは、受信側が途中のファイルの横に残した再開情報（ファイルサイズとファイル全体の CRC32C）が
+ * 送信側のファイルと一致する場合だけで、違うファイルなら最初から受け取り直す。受け取り終わったら、ファイル全体の CRC32C も確かめる。
+ * １つの Sender / Receiver で転送するのは１ファイルだけ。
+ *
+ * 使い方（送信側）:
+ *   FileTransfer.Sender sender = new FileTransfer.Sender( file, service::write, listener );
+ *   service.setOnReceiveListener( sender::onReceive );
+ *   sender.run();    // 完了までブロックする。STATE_CONNECTION_LOST を受けたら sender.abort()
+ *
+ * フレーム（ビッグエンディアン）: magic(1) type(1) length(4) offset(8) crc32c(4) header_crc32c(4) payload(length)
+ *   crc32c はペイロードの CRC32C、header_crc32c はその前の 18 バイトの CRC32C。
+ *   ヘッダも CRC で確かめるので、同期が外れた時にペイロードの中の偽のヘッダをフレームとして扱わない。
+ */
+public class FileTransfer
+{
+    // 定数
+    public static final int  DEFAULT_CHUNK_SIZE  = 4096;
+    public static final int  DEFAULT_WINDOW      = 8;
+    public static final long ACK_TIMEOUT_MILLIS  = 5000;    // この間 ACK が進まなければ、未確認のチャンクを送り直す
+    public static final int  MAX_TIMEOUTS        = 3;       // 連続でタイムアウトしたら失敗
+    public static final String RESUME_INFO_SUFFIX = ".resume";    // 受信中のファイルの再開情報（受信が終わったら消す）
+
+    private static final byte MAGIC       = (byte)0xB7;
+    private static final int  HEADER_SIZE = 22;
+    private static final int  HEADER_CRC_OFFSET = 18;    // header_crc32c の位置（= CRC の対象の長さ）
+    private static final int  MAX_PAYLOAD = 64 * 1024;
+    private static final int  RESUME_INFO_SIZE = 12;    // ファイルサイズ(8) + ファイル全体の CRC32C(4)
+
+    // フレームの種類
+    private static final byte TYPE_RESUME_REQUEST = 1;    // 送信側 → 受信側。offset = ファイルサイズ、crc32c = ファイル全体の CRC32C
+    private static final byte TYPE_RESUME         = 2;    // 受信側 → 送信側。offset = 書き込み済みのバイト数（再開位置）
+    private static final byte TYPE_DATA           = 3;    // 送信側 → 受信側。offset = チャンクの位置
+    private static final byte TYPE_ACK            = 4;    // 受信側 → 送信側。offset = ここまで受信済み
+    private static final byte TYPE_NACK           = 5;    // 受信側 → 送信側。offset = ここから送り直し
+    private static final byte TYPE_ABORT          = 6;    // 受信側 → 送信側。受信側が続けられなくなった
+
+    /**
+     * 送信路（BluetoothService.write() をそのまま渡せる）
+     */
+    public interface Link
+    {
+        void write( byte[] buffer, int offset, int length ) throws IOException;
+    }
+
+    /**
+     * 進捗の通知先
+     * 受信スレッド（BluetoothService の接続スレッド）から呼ばれる
+     * （送信側の onStart() と、再開位置で既に揃っていた時の onComplete() は run() のスレッド）。
+     */
+    public interface Listener
+    {
+        /**
+         * 転送開始（再開の場合は startOffset > 0）
+         */
+        void onStart( long startOffset, long totalBytes );
+
+        /**
+         * 進捗
+         * @param transferredBytes 相手が受け取ったバイト数（再開前の分を含む）
+         * @param bytesPerSecond   この接続での転送速度
+         */
+        void onProgress( long transferredBytes, long totalBytes, double bytesPerSecond );
+
+        void onComplete( long totalBytes );
+
+        /**
+         * 受信側で続けられなくなった（ファイルへの書き込み・応答の送信の失敗、ファイル全体の CRC32C の不一致）
+         * 以降に届いたフレームは捨てる。送信側の失敗は run() の IOException で分かるので、送信側では呼ばれない。
+         */
+        void onError( IOException cause );
+    }
+
+    /// フレームの組み立て・分解 ////////////////////////////////////////////////////
+    /**
+     * ヘッダを書き込む
+     * @param checksum ヘッダの CRC32C の計算用（作業用。値は上書きされる）
+     */
+    private static void putHeader( byte[] frame, byte type, int length, long offset, int crc, Checksum checksum )
+    {
+        ByteBuffer header = ByteBuffer.wrap( frame, 0, HEADER_SIZE );
+        header.put( MAGIC ).put( type ).putInt( length ).putLong( offset ).putInt( crc );
+        checksum.reset();
+        checksum.update( frame, 0, HEADER_CRC_OFFSET );
+        header.putInt( (int)checksum.getValue() );
+    }
+
+    /**
+     * 受信データからフレームを切り出す
+     * BluetoothService の read() はフレームの区切りと関係なく届くので、溜めてから取り出す。
+     */
+    private abstract static class FrameParser
+    {
+        private final byte[] mBuffer;
+        private final Checksum mChecksum = Crc32c.newChecksum();    // ヘッダの確認用
+        private int mLength = 0;
+
+        FrameParser( int maxPayload )
+        {
+            mBuffer = new byte[HEADER_SIZE + maxPayload];
+        }
+
+        /**
+         * 受信データの追加（揃ったフレームごとに onFrame() を呼ぶ）
+         */
+        void feed( byte[] data, int length )
+        {
+            int position = 0;
+            while( position < length ) {
+                int size = Math.min( length - position, mBuffer.length - mLength );
+                System.arraycopy( data, position, mBuffer, mLength, size );
+                mLength += size;
+                position += size;
+                drain();
+            }
+        }
+
+        private void drain()
+        {
+            int start = 0;
+            while( HEADER_SIZE <= mLength - start ) {
+                ByteBuffer header = ByteBuffer.wrap( mBuffer, start, HEADER_SIZE );
+                byte magic = header.get();
+                byte type = header.get();
+                int payloadLength = header.getInt();
+                long offset = header.getLong();
+                int crc = header.getInt();
+                int headerCrc = header.getInt();
+                if( MAGIC != magic || payloadLength < 0 || payloadLength > mBuffer.length - HEADER_SIZE || !isHeaderValid( start, headerCrc ) ) {
+                    start++;    // 同期が外れている（または、ヘッダが壊れている）。１バイトずつずらして探す
+                    continue;
+                }
+                if( mLength - start < HEADER_SIZE + payloadLength ) {
+                    break;    // ペイロードがまだ揃っていない
+                }
+                onFrame( type, offset, mBuffer, start + HEADER_SIZE, payloadLength, crc );
+                start += HEADER_SIZE + payloadLength;
+            }
+            System.arraycopy( mBuffer, start, mBuffer, 0, mLength - start );
+            mLength -= start;
+        }
+
+        private boolean isHeaderValid( int start, int headerCrc )
+        {
+            mChecksum.reset();
+            mChecksum.update( mBuffer, start, HEADER_CRC_OFFSET );
+            return (int)mChecksum.getValue() == headerCrc;
+        }
+
+        abstract void onFrame( byte type, long offset, byte[] payload, int payloadOffset, int payloadLength, int crc );
+    }
+
+    /// 送信側 ////////////////////////////////////////////////////////////////////
+    /**
+     * ファイルの送信
+     * run() を呼んだスレッドで送信し、ACK は onReceive() で受け取る。
+     */
+    public static class Sender
+    {
+        private final File     mFile;
+        private final Link     mLink;
+        private final Listener mListener;
+        private final int      mChunkSize;
+        private final int      mWindow;
+        private final byte[]   mFrame;    // 送信フレーム（使い回す）
+        private final Checksum mChecksum = Crc32c.newChecksum();
+        private final Object   mLock = new Object();
+
+        // 以下は mLock で保護
+        private long    mTotalBytes;
+        private long    mResumeOffset = -1;
+        private long    mAcked;
+        private long    mNackOffset = -1;
+        private boolean mAborted = false;
+        private String  mAbortReason = "transfer aborted";
+        private long    mStartNanos;
+        private long    mStartOffset;
+
+        private final FrameParser mParser = new FrameParser( 0 )
+        {
+            @Override
+            void onFrame( byte type, long offset, byte[] payload, int payloadOffset, int payloadLength, int crc )
+            {
+                onControlFrame( type, offset );
+            }
+        };
+
+        public Sender( File file, Link link, Listener listener )
+        {
+            this( file, link, listener, DEFAULT_CHUNK_SIZE, DEFAULT_WINDOW );
+        }
+
+        /**
+         * @param chunkSize １チャンクの大きさ
+         * @param window    ACK を待たずに送るチャンク数
+         */
+        public Sender( File file, Link link, Listener listener, int chunkSize, int window )
+        {
+            if( 0 >= chunkSize || MAX_PAYLOAD < chunkSize || 0 >= window ) {
+                throw new IllegalArgumentException( "chunkSize must be in (0, " + MAX_PAYLOAD + "], window > 0" );
+            }
+            mFile = file;
+            mLink = link;
+            mListener = listener;
+            mChunkSize = chunkSize;
+            mWindow = window;
+            mFrame = new byte[HEADER_SIZE + chunkSize];
+        }
+
+        /**
+         * 受信データ（BluetoothService.OnReceiveListener からそのまま渡す）
+         */
+        public void onReceive( byte[] buffer, int length )
+        {
+            mParser.feed( buffer, length );
+        }
+
+        /**
+         * 中断（接続ロスト時など）。run() は IOException で抜ける
+         */
+        public void abort()
+        {
+            synchronized( mLock ) {
+                mAborted = true;
+                mLock.notifyAll();
+            }
+        }
+
+        /**
+         * 転送の実行（完了までブロック）
+         * @throws IOException 中断・送信失敗・タイムアウト
+         */
+        public void run() throws IOException
+        {
+            try( RandomAccessFile file = new RandomAccessFile( mFile, "r" );
+                 FileChannel channel = file.getChannel() ) {
+                long size = channel.size();
+                MappedByteBuffer source = channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+                synchronized( mLock ) {
+                    mTotalBytes = size;
+                }
+
+                // 受信側に再開位置を問い合わせる（ファイル全体の CRC32C で、同じファイルかを受信側が確かめる）
+                sendControl( TYPE_RESUME_REQUEST, size, checksumOf( source ) );
+                long next;
+                synchronized( mLock ) {
+                    long deadline = System.currentTimeMillis() + ACK_TIMEOUT_MILLIS;
+                    while( 0 > mResumeOffset ) {
+                        waitUntil( deadline, "resume" );
+                    }
+                    next = mResumeOffset;
+                    mAcked = next;
+                    mStartOffset = next;
+                    mStartNanos = System.nanoTime();
+                }
+                mListener.onStart( next, size );
+                if( next >= size ) {
+                    // 受信側に全部揃っている（空のファイル、または、前の接続で最後まで届いていた）
+                    mListener.onComplete( size );
+                    return;
+                }
+
+                int timeouts = 0;
+                while( true ) {
+                    long acked;
+                    synchronized( mLock ) {
+                        if( 0 <= mNackOffset ) {
+                            // 受信側が指定した位置から送り直す（Go-Back-N）
+                            next = mNackOffset;
+                            mNackOffset = -1;
+                        }
+                        acked = mAcked;
+                    }
+                    if( acked >= size ) {
+                        break;
+                    }
+
+                    // ウィンドウに空きがあるだけ送る
+                    if( next < size && next - acked < (long)mWindow * mChunkSize ) {
+                        int length = (int)Math.min( mChunkSize, size - next );
+                        sendChunk( source, next, length );
+                        next += length;
+                        continue;
+                    }
+
+                    // ACK か NACK を待つ
+                    synchronized( mLock ) {
+                        long deadline = System.currentTimeMillis() + ACK_TIMEOUT_MILLIS;
+                        while( mAcked == acked && 0 > mNackOffset && !mAborted && System.currentTimeMillis() < deadline ) {
+                            waitUntil( deadline, null );
+                        }
+                        if( mAborted ) {
+                            throw new IOException( mAbortReason );
+                        }
+                        if( mAcked == acked && 0 > mNackOffset ) {
+                            // ACK が進まない。未確認のチャンクを送り直す
+                            if( MAX_TIMEOUTS <= ++timeouts ) {
+                                throw new IOException( "ack timeout at " + acked );
+                            }
+                            next = acked;
+                        } else {
+                            timeouts = 0;
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * mLock を持った状態で待つ
+         * @param operation null 以外なら、期限切れで IOException
+         */
+        private void waitUntil( long deadline, String operation ) throws IOException
+        {
+            if( mAborted ) {
+                throw new IOException( mAbortReason );
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if( 0 >= remaining ) {
+                if( null != operation ) {
+                    throw new IOException( operation + " timeout" );
+                }
+                return;
+            }
+            try {
+                mLock.wait( remaining );
+            } catch( InterruptedException e ) {
+                throw new IOException( e );
+            }
+        }
+
+        private void sendChunk( MappedByteBuffer source, long offset, int length ) throws IOException
+        {
+            ByteBuffer chunk = source.duplicate();
+            chunk.position( (int)offset );
+            chunk.get( mFrame, HEADER_SIZE, length );
+            mChecksum.reset();
+            mChecksum.update( mFrame, HEADER_SIZE, length );
+            putHeader( mFrame, TYPE_DATA, length, offset, (int)mChecksum.getValue(), mChecksum );
+            mLink.write( mFrame, 0, HEADER_SIZE + length );
+        }
+
+        private void sendControl( byte type, long offset, int crc ) throws IOException
+        {
+            byte[] frame = new byte[HEADER_SIZE];
+            putHeader( frame, type, 0, offset, crc, mChecksum );
+            mLink.write( frame, 0, HEADER_SIZE );
+        }
+
+        /**
+         * ファイル全体の CRC32C（送信フレームのバッファを作業用に使う）
+         */
+        private int checksumOf( MappedByteBuffer source )
+        {
+            ByteBuffer data = source.duplicate();
+            mChecksum.reset();
+            while( data.hasRemaining() ) {
+                int length = Math.min( data.remaining(), mChunkSize );
+                data.get( mFrame, HEADER_SIZE, length );
+                mChecksum.update( mFrame, HEADER_SIZE, length );
+            }
+            return (int)mChecksum.getValue();
+        }
+
+        private void onControlFrame( byte type, long offset )
+        {
+            long acked;
+            long total;
+            double bytesPerSecond;
+            synchronized( mLock ) {
+                switch( type ) {
+                    case TYPE_RESUME:
+                        mResumeOffset = offset;
+                        mLock.notifyAll();
+                        return;
+                    case TYPE_NACK:
+                        mNackOffset = offset;
+                        mLock.notifyAll();
+                        return;
+                    case TYPE_ABORT:
+                        mAborted = true;
+                        mAbortReason = "receiver failed";
+                        mLock.notifyAll();
+                        return;
+                    case TYPE_ACK:
+                        if( offset <= mAcked ) {
+                            return;
+                        }
+                        mAcked = offset;
+                        mLock.notifyAll();
+                        break;
+                    default:
+                        return;
+                }
+                acked = mAcked;
+                total = mTotalBytes;
+                double seconds = ( System.nanoTime() - mStartNanos ) / 1e9;
+                bytesPerSecond = ( 0 < seconds ) ? ( acked - mStartOffset ) / seconds : 0;
+            }
+            mListener.onProgress( acked, total, bytesPerSecond );
+            if( acked >= total ) {
+                mListener.onComplete( total );
+            }
+        }
+    }
+
+    /// 受信側 ////////////////////////////////////////////////////////////////////
+    /**
+     * ファイルの受信
+     * 受け取ったチャンクは順番どおりにだけ書き込むので、ファイルの長さ = 再開位置 になる。
+     * 書き込み・応答の送信に失敗したら、送信側に ABORT を送って Listener.onError() で知らせ、以降のフレームは捨てる。
+     * onReceive() と close() は同じロックで直列にするので、close() の後に届いたフレームも捨てる。
+     */
+    public static class Receiver
+    {
+        private static final long FORCE_INTERVAL_BYTES = 256 * 1024;    // この分書き込むごとにディスクへ反映
+        private static final int  VERIFY_BUFFER_SIZE   = 64 * 1024;     // ファイル全体の CRC32C を計算する時の読み込み単位
+
+        private final Link        mLink;
+        private final Listener    mListener;
+        private final File        mResumeInfo;    // 再開情報（書き込み先の横に置く）
+        private final FileChannel mChannel;
+        private final Checksum    mChecksum = Crc32c.newChecksum();
+        private final byte[]      mControlFrame = new byte[HEADER_SIZE];    // 応答フレーム（使い回す）
+        private final Object      mLock = new Object();
+
+        // 以下は mLock で保護
+        private long   mExpected;          // 次に書き込む位置
+        private long   mTotalBytes = -1;
+        private int    mFileCrc;           // 送信側から届いたファイル全体の CRC32C
+        private long   mUnforced = 0;
+        private long   mStartNanos;
+        private long   mStartOffset;
+        private boolean mNacked = false;   // NACK 済みで、送り直しを待っている
+        private boolean mFailed = false;   // 続けられなくなった（以降のフレームは捨てる）
+        private boolean mClosed = false;
+
+        private final FrameParser mParser;
+
+        /**
+         * @param file 書き込み先（同じファイルを途中まで受け取っていれば、その続きから受け取る）
+         */
+        public Receiver( File file, Link link, Listener listener ) throws IOException
+        {
+            mLink = link;
+            mListener = listener;
+            mResumeInfo = new File( file.getPath() + RESUME_INFO_SUFFIX );
+            mChannel = new RandomAccessFile( file, "rw" ).getChannel();
+            mExpected = mChannel.size();
+            mParser = new FrameParser( MAX_PAYLOAD )
+            {
+                @Override
+                void onFrame( byte type, long offset, byte[] payload, int payloadOffset, int payloadLength, int crc )
+                {
+                    if( mFailed ) {
+                        return;
+                    }
+                    try {
+                        onDataFrame( type, offset, payload, payloadOffset, payloadLength, crc );
+                    } catch( IOException e ) {
+                        fail( e );
+                    }
+                }
+            };
+        }
+
+        /**
+         * 受信データ（BluetoothService.OnReceiveListener からそのまま渡す）
+         * 失敗しても例外は投げない（Listener.onError() で知らせる）。
+         */
+        public void onReceive( byte[] buffer, int length )
+        {
+            synchronized( mLock ) {
+                if( mClosed || mFailed ) {
+                    return;
+                }
+                mParser.feed( buffer, length );
+            }
+        }
+
+        /**
+         * ファイルを閉じる（接続ロスト時も呼ぶこと。書き込み済みの分は次回の再開位置になる）
+         */
+        public void close() throws IOException
+        {
+            synchronized( mLock ) {
+                if( mClosed ) {
+                    return;
+                }
+                mClosed = true;
+                try {
+                    mChannel.force( false );
+                } finally {
+                    mChannel.close();
+                }
+            }
+        }
+
+        private void onDataFrame( byte type, long offset, byte[] payload, int payloadOffset, int payloadLength, int crc ) throws IOException
+        {
+            switch( type ) {
+                case TYPE_RESUME_REQUEST:
+                    onResumeRequest( offset, crc );
+                    return;
+                case TYPE_DATA:
+                    if( 0 > mTotalBytes || offset + payloadLength > mTotalBytes ) {
+                        return;    // 再開位置の問い合わせの前、または、ファイルの範囲外
+                    }
+                    break;
+                default:
+                    return;
+            }
+
+            if( offset != mExpected ) {
+                if( offset < mExpected ) {
+                    sendControl( TYPE_ACK, mExpected );    // 送り直しで届いた受信済みのチャンク
+                } else if( !mNacked ) {
+                    sendControl( TYPE_NACK, mExpected );   // 抜けがある
+                    mNacked = true;
+                }
+                return;
+            }
+            mChecksum.reset();
+            mChecksum.update( payload, payloadOffset, payloadLength );
+            if( (int)mChecksum.getValue() != crc ) {
+                if( !mNacked ) {
+                    sendControl( TYPE_NACK, mExpected );
+                    mNacked = true;
+                }
+                return;
+            }
+            mNacked = false;
+
+            ByteBuffer data = ByteBuffer.wrap( payload, payloadOffset, payloadLength );
+            while( data.hasRemaining() ) {
+                mChannel.write( data, mExpected + ( payloadLength - data.remaining() ) );
+            }
+            mExpected += payloadLength;
+            mUnforced += payloadLength;
+            boolean complete = ( mExpected == mTotalBytes );
+            if( FORCE_INTERVAL_BYTES <= mUnforced || complete ) {
+                mChannel.force( false );
+                mUnforced = 0;
+            }
+            if( complete ) {
+                verify();    // 最後の ACK は、ファイル全体を確かめてから返す
+            }
+            sendControl( TYPE_ACK, mExpected );
+
+            double seconds = ( System.nanoTime() - mStartNanos ) / 1e9;
+            mListener.onProgress( mExpected, mTotalBytes, ( 0 < seconds ) ? ( mExpected - mStartOffset ) / seconds : 0 );
+            if( complete ) {
+                finish();
+            }
+        }
+
+        /**
+         * 再開位置の問い合わせ
+         * 再開情報が送信側のファイルと一致しなければ、別のファイルの残りなので最初から受け取る。
+         * 既に全部揃っていれば（空のファイルも）、ファイル全体を確かめて、その場で完了にする。
+         * １つの Receiver で受け取るのは１ファイルだけなので、２回目以降の問い合わせは無視する（書き込み先と再開情報を消さない）。
+         */
+        private void onResumeRequest( long totalBytes, int fileCrc ) throws IOException
+        {
+            if( 0 <= mTotalBytes ) {
+                return;
+            }
+            mTotalBytes = totalBytes;
+            mFileCrc = fileCrc;
+            if( mExpected > mTotalBytes || !matchesResumeInfo() ) {
+                restart();
+            }
+            if( mExpected == mTotalBytes && fileCrc != checksumOfFile() ) {
+                restart();    // 揃っているはずの中身が違う
+            }
+            mStartOffset = mExpected;
+            mStartNanos = System.nanoTime();
+            mNacked = false;
+            sendControl( TYPE_RESUME, mExpected );
+            mListener.onStart( mExpected, mTotalBytes );
+            if( mExpected == mTotalBytes ) {
+                finish();
+            }
+        }
+
+        /**
+         * 書き込み先を空にして、再開情報を書き直す
+         */
+        private void restart() throws IOException
+        {
+            mChannel.truncate( 0 );
+            mChannel.force( false );
+            mExpected = 0;
+            mUnforced = 0;
+            byte[] info = ByteBuffer.allocate( RESUME_INFO_SIZE ).putLong( mTotalBytes ).putInt( mFileCrc ).array();
+            Files.write( mResumeInfo.toPath(), info, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                         StandardOpenOption.WRITE, StandardOpenOption.SYNC );
+        }
+
+        /**
+         * 再開情報が、送信側から届いたファイルサイズと CRC32C に一致するか
+         */
+        private boolean matchesResumeInfo() throws IOException
+        {
+            if( !mResumeInfo.isFile() || RESUME_INFO_SIZE != mResumeInfo.length() ) {
+                return false;
+            }
+            ByteBuffer info = ByteBuffer.wrap( Files.readAllBytes( mResumeInfo.toPath() ) );
+            return RESUME_INFO_SIZE == info.remaining() && mTotalBytes == info.getLong() && mFileCrc == info.getInt();
+        }
+
+        /**
+         * 受け取り終わったファイル全体の CRC32C を確かめる
+         * 一致しなければ、次回は最初から受け取るように書き込み先を空にする。
+         * @throws IOException 不一致
+         */
+        private void verify() throws IOException
+        {
+            if( mFileCrc != checksumOfFile() ) {
+                restart();
+                throw new IOException( "file checksum mismatch" );
+            }
+        }
+
+        private int checksumOfFile() throws IOException
+        {
+            ByteBuffer buffer = ByteBuffer.allocate( VERIFY_BUFFER_SIZE );
+            mChecksum.reset();
+            long position = 0;
+            while( position < mExpected ) {
+                buffer.clear();
+                int read = mChannel.read( buffer, position );
+                if( 0 > read ) {
+                    break;
+                }
+                mChecksum.update( buffer.array(), 0, read );
+                position += read;
+            }
+            return (int)mChecksum.getValue();
+        }
+
+        /**
+         * 完了（再開情報はもう要らない）
+         */
+        private void finish()
+        {
+            mResumeInfo.delete();    // 消せなくても、次回は中身の CRC32C で確かめるので問題ない
+            mListener.onComplete( mTotalBytes );
+        }
+
+        /**
+         * 続けられなくなった。送信側に知らせて、以降のフレームを捨てる
+         */
+        private void fail( IOException cause )
+        {
+            mFailed = true;
+            try {
+                sendControl( TYPE_ABORT, mExpected );
+            } catch( IOException e ) {
+                // 送れなくても、送信側は ACK のタイムアウトで止まる
+            }
+            mListener.onError( cause );
+        }
+
+        private void sendControl( byte type, long offset ) throws IOException
+        {
+            putHeader( mControlFrame, type, 0, offset, 0, mChecksum );
+            mLink.write( mControlFrame, 0, HEADER_SIZE );
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package jp.ac.jec.jz.bluetoothsample2020;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Notification の振り分け表（ハンドル → 通知先）
+ * サービス探索の直後に１回だけ作る。Notification を受けるたびに UUID の検索や比較をせず、
+ * キャラクタリスティックのハンドル（getInstanceId()）を添字にした配列を引くだけで通知先が決まる。
+ */
+public class GattNotificationIndex
+{
+    /**
+     * Notification の通知先
+     * GATT のコールバックスレッドから呼ばれるので、重い処理はしないこと。
+     */
+    public interface Listener
+    {
+        void onNotification( BluetoothGattCharacteristic characteristic, byte[] value );
+    }
+
+    // メンバー変数
+    private final BluetoothGattCharacteristic[] mCharacteristics;    // ハンドル → Notify / Indicate できるキャラクタリスティック
+    private final AtomicReferenceArray<Listener> mListeners;          // ハンドル → 通知先（未購読は null）
+
+    /**
+     * サービス探索の結果から振り分け表を作る
+     * @param services BluetoothGatt.getServices()
+     */
+    public GattNotificationIndex( List<BluetoothGattService> services )
+    {
+        int maxHandle = -1;
+        for( BluetoothGattService service : services ) {
+            for( BluetoothGattCharacteristic characteristic : service.getCharacteristics() ) {
+                if( isNotifiable( characteristic ) ) {
+                    maxHandle = Math.max( maxHandle, characteristic.getInstanceId() );
+                }
+            }
+        }
+        mCharacteristics = new BluetoothGattCharacteristic[maxHandle + 1];
+        mListeners = new AtomicReferenceArray<>( maxHandle + 1 );
+        for( BluetoothGattService service : services ) {
+            for( BluetoothGattCharacteristic characteristic : service.getCharacteristics() ) {
+                if( isNotifiable( characteristic ) ) {
+                    mCharacteristics[characteristic.getInstanceId()] = characteristic;
+                }
+            }
+        }
+    }
+
+    private static boolean isNotifiable( BluetoothGattCharacteristic characteristic )
+    {
+        int properties = characteristic.getProperties();
+        return 0 != ( properties & ( BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_INDICATE ) );
+    }
+
+    /**
+     * 購読できるか（この振り分け表を作ったサービス探索で得た、Notify / Indicate できるキャラクタリスティックか）
+     */
+    public boolean contains( BluetoothGattCharacteristic characteristic )
+    {
+        int handle = characteristic.getInstanceId();
+        return 0 <= handle && handle < mCharacteristics.length && characteristic == mCharacteristics[handle];
+    }
+
+    /**
+     * 通知先の登録（null で解除）
+     * @param characteristic サービス探索で得たキャラクタリスティック
+     * @param listener       通知先
+     * @throws IllegalArgumentException 購読できないキャラクタリスティック（contains() で先に確かめること）
+     */
+    public void setListener( BluetoothGattCharacteristic characteristic, Listener listener )
+    {
+        if( !contains( characteristic ) ) {
+            throw new IllegalArgumentException( "not notifiable: " + characteristic.getUuid() );
+        }
+        mListeners.set( characteristic.getInstanceId(), listener );
+    }
+
+    /**
+     * Notification の振り分け（onCharacteristicChanged から呼ぶ）
+     * @return 通知先があれば true
+     */
+    public boolean dispatch( BluetoothGattCharacteristic characteristic )
+    {
+        int handle = characteristic.getInstanceId();
+        if( handle < 0 || handle >= mListeners.length() ) {
+            return false;
+        }
+        Listener listener = mListeners.get( handle );
+        if( null == listener ) {
+            return false;
+        }
+        listener.onNotification( characteristic, characteristic.getValue() );
+        return true;
+    }
+}
@@ -0,0 +1,437 @@
+package jp.ac.jec.jz.bluetoothsample2020;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * GATT 操作の直列化キュー
+ * Android の GATT は、前の操作の完了コールバックが来る前に次の操作を投げると、黙って捨てる（false が返るだけ）。
+ * そのため、読み込み・書き込み・ディスクリプタ書き込み・MTU 要求・サービス探索を１つずつ順に実行する。
+ * 操作ごとにタイムアウトと再試行回数を持ち、結果は CompletableFuture で返す。
+ * タイムアウト時の再試行は、やり直しても害のない操作だけ（キャラクタリスティックの書き込みは二重送信になるので再試行しない）。
+ * タイムアウトした試行のコールバックが遅れて届くことがあるので、開始した試行を開始順に覚えておき、
+ * コールバックはまだ届いていない一番古い試行（同じ種類・対象）のものとして扱う（スタックは開始順にコールバックを返す）。
+ * BluetoothGattCallback の各コールバックから、対応する on～() を呼ぶこと。
+ */
+public class GattOperationQueue
+{
+    // 定数
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+    public static final int  DEFAULT_RETRIES        = 2;
+    static final long BUSY_RETRY_DELAY_MILLIS = 10;    // スタックが受け付けなかった時の再投入までの待ち
+    static final int  MAX_BUSY_RETRIES        = 50;
+    // タイムアウトした（または、完了済みの操作の）試行のコールバックを待つ時間
+    // これを過ぎても届かなければ、捨てられたものとみなす。その間に同じ種類・対象の次の試行のコールバックが来ると、
+    // 取り違えないように前の試行のものとして扱うので、次の試行もタイムアウトすることがある。
+    static final long STALE_CALLBACK_MILLIS   = DEFAULT_TIMEOUT_MILLIS;
+
+    // 操作の種類（完了コールバックとの突き合わせに使う）
+    private static final int KIND_DISCOVER_SERVICES = 1;
+    private static final int KIND_REQUEST_MTU       = 2;
+    private static final int KIND_READ              = 3;
+    private static final int KIND_WRITE             = 4;
+    private static final int KIND_WRITE_DESCRIPTOR  = 5;
+
+    /**
+     * 操作の実行先（BluetoothGatt の該当メソッド。テストでは偽物に差し替える）
+     */
+    interface Client
+    {
+        boolean discoverServices();
+        boolean requestMtu( int mtu );
+        boolean readCharacteristic( BluetoothGattCharacteristic characteristic );
+        boolean writeCharacteristic( BluetoothGattCharacteristic characteristic );
+        boolean writeDescriptor( BluetoothGattDescriptor descriptor );
+    }
+
+    /**
+     * キューに入れる操作
+     */
+    private abstract static class Operation<T>
+    {
+        final int kind;
+        final Object target;    // 対象のキャラクタリスティック・ディスクリプタ（無ければ null）
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        int retriesLeft;        // タイムアウト時の再試行の残り
+        int busyRetriesLeft = MAX_BUSY_RETRIES;    // スタックが受け付けなかった時の再投入の残り
+
+        Operation( int kind, Object target, int retries )
+        {
+            this.kind = kind;
+            this.target = target;
+            this.retriesLeft = retries;
+        }
+
+        /**
+         * 操作の開始
+         * @return スタックが受け付けたら true
+         */
+        abstract boolean start( Client client );
+    }
+
+    /**
+     * スタックが受け付けた１回分の試行
+     */
+    private static class Attempt
+    {
+        final Operation<?> operation;
+        long expiresAt = Long.MAX_VALUE;    // これを過ぎたらコールバックを待たない（SystemClock.uptimeMillis()）
+
+        Attempt( Operation<?> operation )
+        {
+            this.operation = operation;
+        }
+    }
+
+    // メンバー変数
+    private final Client mClient;
+    private final Handler mHandler = new Handler( Looper.getMainLooper() );
+    private final ArrayDeque<Operation<?>> mQueue = new ArrayDeque<>();
+    private final ArrayDeque<Attempt> mAttempts = new ArrayDeque<>();    // コールバック待ちの試行（開始順）
+    private Operation<?> mCurrent;    // 実行中の操作（完了コールバック待ち）
+    private IOException  mClosedCause;
+
+    // 実行中の操作のタイムアウト
+    private final Runnable mTimeout = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            synchronized( GattOperationQueue.this ) {
+                if( null == mCurrent ) {
+                    return;
+                }
+                Operation<?> operation = mCurrent;
+                mCurrent = null;
+                expire( operation );    // タイムアウトした試行のコールバックは、しばらくは遅れて届くかもしれない
+                if( 0 < operation.retriesLeft-- ) {
+                    mQueue.addFirst( operation );
+                } else {
+                    operation.future.completeExceptionally( new TimeoutException( "GATT operation " + operation.kind + " timed out" ) );
+                }
+                next();
+            }
+        }
+    };
+
+    // 次の操作の開始（スタックが受け付けなかった時の再投入用）
+    private final Runnable mNext = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            synchronized( GattOperationQueue.this ) {
+                next();
+            }
+        }
+    };
+
+    /**
+     * constructor
+     * @param gatt 操作対象
+     */
+    public GattOperationQueue( final BluetoothGatt gatt )
+    {
+        this( new Client()
+        {
+            @Override
+            public boolean discoverServices()
+            {
+                return gatt.discoverServices();
+            }
+
+            @Override
+            public boolean requestMtu( int mtu )
+            {
+                return gatt.requestMtu( mtu );
+            }
+
+            @Override
+            public boolean readCharacteristic( BluetoothGattCharacteristic characteristic )
+            {
+                return gatt.readCharacteristic( characteristic );
+            }
+
+            @Override
+            public boolean writeCharacteristic( BluetoothGattCharacteristic characteristic )
+            {
+                return gatt.writeCharacteristic( characteristic );
+            }
+
+            @Override
+            public boolean writeDescriptor( BluetoothGattDescriptor descriptor )
+            {
+                return gatt.writeDescriptor( descriptor );
+            }
+        } );
+    }
+
+    /**
+     * constructor（テスト用）
+     * @param client 操作の実行先
+     */
+    GattOperationQueue( Client client )
+    {
+        mClient = client;
+    }
+
+    /// 操作の登録 ///////////////////////////////////////////////////////////////
+    /**
+     * サービス探索
+     */
+    public CompletableFuture<Void> discoverServices()
+    {
+        return enqueue( new Operation<Void>( KIND_DISCOVER_SERVICES, null, DEFAULT_RETRIES )
+        {
+            @Override
+            boolean start( Client client )
+            {
+                return client.discoverServices();
+            }
+        } );
+    }
+
+    /**
+     * MTU の要求
+     * @param mtu 希望する MTU
+     * @return 交渉後の MTU
+     */
+    public CompletableFuture<Integer> requestMtu( int mtu )
+    {
+        return enqueue( new Operation<Integer>( KIND_REQUEST_MTU, null, DEFAULT_RETRIES )
+        {
+            @Override
+            boolean start( Client client )
+            {
+                return client.requestMtu( mtu );
+            }
+        } );
+    }
+
+    /**
+     * キャラクタリスティックの読み込み
+     * @return 読み込んだ値
+     */
+    public CompletableFuture<byte[]> read( BluetoothGattCharacteristic characteristic )
+    {
+        return enqueue( new Operation<byte[]>( KIND_READ, characteristic, DEFAULT_RETRIES )
+        {
+            @Override
+            boolean start( Client client )
+            {
+                return client.readCharacteristic( characteristic );
+            }
+        } );
+    }
+
+    /**
+     * キャラクタリスティックの書き込み
+     * Write Without Response の場合も、onCharacteristicWrite（コントローラーが受け取った通知）で完了になる。
+     * @param value     書き込む値（呼び出し後に変更しないこと）
+     * @param writeType BluetoothGattCharacteristic.WRITE_TYPE_～
+     */
+    public CompletableFuture<Void> write( BluetoothGattCharacteristic characteristic, byte[] value, int writeType )
+    {
+        return enqueue( new Operation<Void>( KIND_WRITE, characteristic, 0 )
+        {
+            @Override
+            boolean start( Client client )
+            {
+                characteristic.setWriteType( writeType );
+                characteristic.setValue( value );
+                return client.writeCharacteristic( characteristic );
+            }
+        } );
+    }
+
+    /**
+     * ディスクリプタの書き込み
+     * @param value 書き込む値（呼び出し後に変更しないこと）
+     */
+    public CompletableFuture<Void> writeDescriptor( BluetoothGattDescriptor descriptor, byte[] value )
+    {
+        return enqueue( new Operation<Void>( KIND_WRITE_DESCRIPTOR, descriptor, DEFAULT_RETRIES )
+        {
+            @Override
+            boolean start( Client client )
+            {
+                descriptor.setValue( value );
+                return client.writeDescriptor( descriptor );
+            }
+        } );
+    }
+
+    /**
+     * 実行待ちの操作の数（実行中の操作を含む）
+     */
+    public synchronized int size()
+    {
+        return mQueue.size() + ( null == mCurrent ? 0 : 1 );
+    }
+
+    /**
+     * 全ての操作を失敗させて、以降の登録も受け付けない（切断時）
+     * @param cause 失敗の理由
+     */
+    public synchronized void close( IOException cause )
+    {
+        if( null != mClosedCause ) {
+            return;
+        }
+        mClosedCause = cause;
+        mHandler.removeCallbacks( mTimeout );
+        mHandler.removeCallbacks( mNext );
+        if( null != mCurrent ) {
+            mCurrent.future.completeExceptionally( cause );
+            mCurrent = null;
+        }
+        for( Operation<?> operation : mQueue ) {
+            operation.future.completeExceptionally( cause );
+        }
+        mQueue.clear();
+        mAttempts.clear();
+    }
+
+    /// BluetoothGattCallback から呼ぶ //////////////////////////////////////////
+    public void onServicesDiscovered( int status )
+    {
+        finish( KIND_DISCOVER_SERVICES, null, status, null );
+    }
+
+    public void onMtuChanged( int mtu, int status )
+    {
+        finish( KIND_REQUEST_MTU, null, status, mtu );
+    }
+
+    public void onCharacteristicRead( BluetoothGattCharacteristic characteristic, int status )
+    {
+        finish( KIND_READ, characteristic, status, characteristic.getValue() );
+    }
+
+    public void onCharacteristicWrite( BluetoothGattCharacteristic characteristic, int status )
+    {
+        finish( KIND_WRITE, characteristic, status, null );
+    }
+
+    public void onDescriptorWrite( BluetoothGattDescriptor descriptor, int status )
+    {
+        finish( KIND_WRITE_DESCRIPTOR, descriptor, status, null );
+    }
+
+    /// 内部処理 ////////////////////////////////////////////////////////////////
+    private synchronized <T> CompletableFuture<T> enqueue( Operation<T> operation )
+    {
+        if( null != mClosedCause ) {
+            operation.future.completeExceptionally( mClosedCause );
+            return operation.future;
+        }
+        mQueue.addLast( operation );
+        if( null == mCurrent ) {
+            next();
+        }
+        return operation.future;
+    }
+
+    /**
+     * コールバックに対応する試行の操作を完了させて、次の操作を開始する
+     * サービス探索と MTU 要求は対象が無く、同じキャラクタリスティックの読み込みの再試行は対象も同じなので、
+     * 種類と対象だけでは、タイムアウトした試行の遅れたコールバックと、今の試行のコールバックを区別できない。
+     * そのため、まだコールバックが来ていない一番古い試行のものとして扱う。
+     * 再試行中に前の試行のコールバックが来た場合は、その結果で操作を完了させる（再試行する操作は、何回やっても同じ結果）。
+     * 失敗済みの操作の試行のコールバックは捨てるので、後から始めた同じ種類の操作を完了させることはない。
+     */
+    @SuppressWarnings( "unchecked" )
+    private synchronized void finish( int kind, Object target, int status, Object result )
+    {
+        Attempt attempt = takeAttempt( kind, target );
+        if( null == attempt ) {
+            return;
+        }
+        Operation<Object> operation = (Operation<Object>)attempt.operation;
+        if( BluetoothGatt.GATT_SUCCESS == status ) {
+            operation.future.complete( result );
+        } else {
+            operation.future.completeExceptionally( new IOException( "GATT operation " + kind + " failed: status " + status ) );
+        }
+        expire( operation );    // 同じ操作のほかの試行のコールバックは、届いても捨てる
+        if( operation == mCurrent ) {
+            mHandler.removeCallbacks( mTimeout );
+            mCurrent = null;
+            next();
+        }
+    }
+
+    /**
+     * コールバックに対応する試行を取り出す（ロックを持った状態で呼ぶこと）
+     * 待つ時間を過ぎた試行は、ついでに捨てる。
+     * @return まだコールバックが来ていない一番古い試行。無ければ null
+     */
+    private Attempt takeAttempt( int kind, Object target )
+    {
+        long now = SystemClock.uptimeMillis();
+        Iterator<Attempt> iterator = mAttempts.iterator();
+        while( iterator.hasNext() ) {
+            Attempt attempt = iterator.next();
+            if( attempt.expiresAt <= now ) {
+                iterator.remove();
+                continue;
+            }
+            if( kind == attempt.operation.kind && ( null == target || target == attempt.operation.target ) ) {
+                iterator.remove();
+                return attempt;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 操作の試行のコールバックを待つのを STALE_CALLBACK_MILLIS 後までにする（ロックを持った状態で呼ぶこと）
+     */
+    private void expire( Operation<?> operation )
+    {
+        long expiresAt = SystemClock.uptimeMillis() + STALE_CALLBACK_MILLIS;
+        for( Attempt attempt : mAttempts ) {
+            if( operation == attempt.operation && Long.MAX_VALUE == attempt.expiresAt ) {
+                attempt.expiresAt = expiresAt;
+            }
+        }
+    }
+
+    /**
+     * 次の操作を開始する（ロックを持った状態で呼ぶこと）
+     */
+    private void next()
+    {
+        while( null == mCurrent && !mQueue.isEmpty() ) {
+            Operation<?> operation = mQueue.peekFirst();
+            if( operation.future.isDone() ) {    // 呼び出し側でキャンセル済み
+                mQueue.pollFirst();
+                continue;
+            }
+            if( operation.start( mClient ) ) {
+                mQueue.pollFirst();
+                mCurrent = operation;
+                mAttempts.addLast( new Attempt( operation ) );
+                mHandler.postDelayed( mTimeout, DEFAULT_TIMEOUT_MILLIS );
+                return;
+            }
+            // スタックが受け付けなかった（別の操作が残っている等）。少し待って再投入する
+            if( 0 < operation.busyRetriesLeft-- ) {
+                mHandler.postDelayed( mNext, BUSY_RETRY_DELAY_MILLIS );
+                return;
+            }
+            mQueue.pollFirst();
+            operation.future.completeExceptionally( new IOException( "GATT operation " + operation.kind + " was rejected" ) );
+        }
+    }
+}
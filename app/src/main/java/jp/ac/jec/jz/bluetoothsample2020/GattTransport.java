@@ -0,0 +1,426 @@
+package jp.ac.jec.jz.bluetoothsample2020;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * BLE GATT を使う通信路（RFCOMM と同じ BluetoothService の送受信 API で使える）
+ * 接続時に MTU をできるだけ大きく交渉し、送信は Write Without Response を連続で投げる。
+ * GATT の操作は全て GattOperationQueue で１つずつ実行する。送信パケットも同じキューに入れ、
+ * onCharacteristicWrite（コントローラーのフロー制御で空きができた通知）が来たら次を投げる。
+ * パケットの分割・同時に積む数・接続優先度の切り替えは GattWritePacer が受け持つ。
+ * 受信は、相手側の送信用キャラクタリスティックの Notification を読み出しストリームとして返す。
+ * 読み出しが追いつかずに保持数を超えたら、ストリームに穴を空けないように切断する（読み出し側は接続ロストになる）。
+ * Notification はサービス探索時に作る GattNotificationIndex でハンドルから通知先を引く（UUID の比較はしない）。
+ * 既定のサービスは Nordic UART Service（BLE でシリアル通信をする時の定番）。
+ * 接続後のインスタンスは BluetoothService.getTransport() で取れる（ほかのキャラクタリスティックの購読・読み書き用）。
+ */
+public class GattTransport implements BluetoothTransport
+{
+    // Nordic UART Service
+    public static final UUID UUID_NUS_SERVICE = UUID.fromString( "6e400001-b5a3-f393-e0a9-e50e24dcca9e" );
+    public static final UUID UUID_NUS_RX      = UUID.fromString( "6e400002-b5a3-f393-e0a9-e50e24dcca9e" );    // こちら → 相手
+    public static final UUID UUID_NUS_TX      = UUID.fromString( "6e400003-b5a3-f393-e0a9-e50e24dcca9e" );    // 相手 → こちら
+    // Client Characteristic Configuration Descriptor
+    public static final UUID UUID_CCCD        = UUID.fromString( "00002902-0000-1000-8000-00805f9b34fb" );
+
+    // 定数
+    private static final long CONNECT_TIMEOUT_MILLIS = 10000;    // connectGatt() から接続完了までの待ち
+    static final int          RECEIVE_QUEUE_SIZE     = 256;      // 受信した Notification の保持数（超えたら切断する）
+    private static final byte[] END_OF_STREAM      = new byte[0];
+
+    /**
+     * Factory の作成
+     * @param context connectGatt() に渡すコンテキスト
+     * @param serviceUuid 使うサービス
+     * @param writeUuid   こちらから書き込むキャラクタリスティック
+     * @param notifyUuid  相手から Notification が来るキャラクタリスティック
+     */
+    public static BluetoothTransport.Factory factory( Context context, UUID serviceUuid, UUID writeUuid, UUID notifyUuid )
+    {
+        final Context applicationContext = context.getApplicationContext();
+        return device -> new GattTransport( applicationContext, device, serviceUuid, writeUuid, notifyUuid );
+    }
+
+    // メンバー変数
+    private final Context         mContext;
+    private final BluetoothDevice mDevice;
+    private final UUID mServiceUuid;
+    private final UUID mWriteUuid;
+    private final UUID mNotifyUuid;
+    private final ConnectionStats mStats;    // 送受信キューの深さと、捨てた Notification の数
+
+    private BluetoothGatt mBluetoothGatt;
+    private volatile GattOperationQueue    mOperationQueue;
+    private volatile GattNotificationIndex mNotificationIndex;
+    private BluetoothGattCharacteristic mWriteCharacteristic;
+    private volatile boolean mClosed = false;    // 送受信の終了（close() か、相手側からの切断）
+    private boolean mGattReleased = false;       // BluetoothGatt を close() 済みか
+
+    // 接続完了待ち（接続はキューに入れる操作ではないので別に待つ）
+    private final CountDownLatch mConnected = new CountDownLatch( 1 );
+    private volatile int mConnectStatus = BluetoothGatt.GATT_SUCCESS;
+
+    // 送信のペース配分（パケットはキューに入れ、接続優先度は BluetoothGatt に直接要求する）
+    private final GattWritePacer mWritePacer = new GattWritePacer( new GattWritePacer.PacketWriter()
+    {
+        @Override
+        public CompletableFuture<Void> writePacket( byte[] packet )
+        {
+            CompletableFuture<Void> future = mOperationQueue.write( mWriteCharacteristic, packet, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE );
+            mStats.setTxQueueDepth( mOperationQueue.size() );
+            return future;
+        }
+
+        @Override
+        public void requestConnectionPriority( int priority )
+        {
+            mBluetoothGatt.requestConnectionPriority( priority );
+        }
+    } );
+
+    // 受信した Notification
+    private final LinkedBlockingQueue<byte[]> mReceiveQueue = new LinkedBlockingQueue<>( RECEIVE_QUEUE_SIZE );
+
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback()
+    {
+        @Override
+        public void onConnectionStateChange( BluetoothGatt gatt, int status, int newState )
+        {
+            if( BluetoothProfile.STATE_CONNECTED == newState && BluetoothGatt.GATT_SUCCESS == status ) {
+                mConnected.countDown();
+                return;
+            }
+            // 接続失敗、または、接続ロスト
+            mConnectStatus = ( BluetoothGatt.GATT_SUCCESS == status ) ? -1 : status;
+            mConnected.countDown();
+            shutdown();
+        }
+
+        @Override
+        public void onServicesDiscovered( BluetoothGatt gatt, int status )
+        {
+            GattTransport.this.onServicesDiscovered( gatt.getServices(), status );
+        }
+
+        @Override
+        public void onMtuChanged( BluetoothGatt gatt, int mtu, int status )
+        {
+            mOperationQueue.onMtuChanged( mtu, status );
+        }
+
+        @Override
+        public void onCharacteristicRead( BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status )
+        {
+            mOperationQueue.onCharacteristicRead( characteristic, status );
+        }
+
+        @Override
+        public void onDescriptorWrite( BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status )
+        {
+            mOperationQueue.onDescriptorWrite( descriptor, status );
+        }
+
+        @Override
+        public void onCharacteristicWrite( BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status )
+        {
+            mOperationQueue.onCharacteristicWrite( characteristic, status );
+        }
+
+        @Override
+        public void onCharacteristicChanged( BluetoothGatt gatt, BluetoothGattCharacteristic characteristic )
+        {
+            GattNotificationIndex index = mNotificationIndex;
+            if( null != index ) {
+                index.dispatch( characteristic );
+            }
+        }
+    };
+
+    // 受信ストリームへの Notification の受け渡し
+    private final GattNotificationIndex.Listener mReceiveListener = new GattNotificationIndex.Listener()
+    {
+        @Override
+        public void onNotification( BluetoothGattCharacteristic characteristic, byte[] value )
+        {
+            receive( value );
+        }
+    };
+
+    private final InputStream mInputStream = new InputStream()
+    {
+        private byte[] mCurrent = END_OF_STREAM;
+        private int    mPosition = 0;
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] one = new byte[1];
+            return ( 0 < read( one, 0, 1 ) ) ? ( one[0] & 0xFF ) : -1;
+        }
+
+        @Override
+        public int read( byte[] buffer, int offset, int length ) throws IOException
+        {
+            if( mPosition == mCurrent.length ) {
+                try {
+                    mCurrent = mReceiveQueue.take();
+                } catch( InterruptedException e ) {
+                    throw new IOException( e );
+                }
+                mPosition = 0;
+                if( END_OF_STREAM == mCurrent ) {
+                    mReceiveQueue.offer( END_OF_STREAM );    // 次の read() でも終わりを返す
+                    throw new IOException( "GATT connection closed" );
+                }
+            }
+            int size = Math.min( length, mCurrent.length - mPosition );
+            System.arraycopy( mCurrent, mPosition, buffer, offset, size );
+            mPosition += size;
+            return size;
+        }
+    };
+
+    private final OutputStream mOutputStream = new OutputStream()
+    {
+        @Override
+        public void write( int b ) throws IOException
+        {
+            write( new byte[]{ (byte)b }, 0, 1 );
+        }
+
+        @Override
+        public void write( byte[] buffer, int offset, int length ) throws IOException
+        {
+            mWritePacer.write( buffer, offset, length );
+        }
+    };
+
+    private GattTransport( Context context, BluetoothDevice device, UUID serviceUuid, UUID writeUuid, UUID notifyUuid )
+    {
+        mContext = context;
+        mDevice = device;
+        mServiceUuid = serviceUuid;
+        mWriteUuid = writeUuid;
+        mNotifyUuid = notifyUuid;
+        mStats = ConnectionStats.forAddress( device.getAddress() );
+    }
+
+    /**
+     * 接続 → サービス探索 → MTU 交渉 → Notification の有効化 までを順に行う
+     */
+    @Override
+    public void connect() throws IOException
+    {
+        synchronized( this ) {
+            if( mClosed ) {
+                throw new IOException( "closed" );
+            }
+            mBluetoothGatt = mDevice.connectGatt( mContext, false, mGattCallback, BluetoothDevice.TRANSPORT_LE );
+            if( null == mBluetoothGatt ) {
+                throw new IOException( "connectGatt() failed" );
+            }
+            mOperationQueue = new GattOperationQueue( mBluetoothGatt );
+        }
+        try {
+            if( !mConnected.await( CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS ) ) {
+                throw new IOException( "connectGatt timeout" );
+            }
+        } catch( InterruptedException e ) {
+            throw new IOException( e );
+        }
+        if( mClosed || BluetoothGatt.GATT_SUCCESS != mConnectStatus ) {
+            throw new IOException( "connectGatt failed: status " + mConnectStatus );
+        }
+
+        await( mOperationQueue.discoverServices(), "discoverServices" );
+
+        // 相手が受け付ける一番大きい MTU（交渉に失敗しても、既定の MTU で続ける）
+        mWritePacer.negotiateMtu( mOperationQueue.requestMtu( GattWritePacer.MAX_MTU ) );
+
+        BluetoothGattService service = mBluetoothGatt.getService( mServiceUuid );
+        if( null == service ) {
+            throw new IOException( "service not found: " + mServiceUuid );
+        }
+        mWriteCharacteristic = service.getCharacteristic( mWriteUuid );
+        BluetoothGattCharacteristic notifyCharacteristic = service.getCharacteristic( mNotifyUuid );
+        if( null == mWriteCharacteristic || null == notifyCharacteristic ) {
+            throw new IOException( "characteristic not found" );
+        }
+        await( subscribe( notifyCharacteristic, mReceiveListener ), "subscribe" );
+    }
+
+    /**
+     * Notification の購読
+     * ローカルの設定（setCharacteristicNotification）と、相手側の CCCD への書き込みの両方を行う。
+     * 受信ストリーム以外のキャラクタリスティックも、これで同時に購読できる。
+     * @param characteristic Notify / Indicate できるキャラクタリスティック（サービス探索後のもの）
+     * @param listener       通知先（GATT のコールバックスレッドから呼ばれる）
+     * @return CCCD の書き込み完了（購読できないキャラクタリスティックの場合は IOException で失敗）
+     */
+    public CompletableFuture<Void> subscribe( BluetoothGattCharacteristic characteristic, GattNotificationIndex.Listener listener )
+    {
+        GattNotificationIndex index = mNotificationIndex;
+        if( null == index ) {
+            return failed( new IOException( "services are not discovered" ) );
+        }
+        int properties = characteristic.getProperties();
+        if( 0 == ( properties & ( BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_INDICATE ) ) ) {
+            return failed( new IOException( "characteristic does not support notification: " + characteristic.getUuid() ) );
+        }
+        if( !index.contains( characteristic ) ) {
+            return failed( new IOException( "characteristic is not from the current service discovery: " + characteristic.getUuid() ) );
+        }
+        index.setListener( characteristic, listener );
+        mBluetoothGatt.setCharacteristicNotification( characteristic, true );
+        BluetoothGattDescriptor cccd = characteristic.getDescriptor( UUID_CCCD );
+        if( null == cccd ) {
+            return CompletableFuture.completedFuture( null );
+        }
+        boolean indicate = 0 == ( properties & BluetoothGattCharacteristic.PROPERTY_NOTIFY );
+        return mOperationQueue.writeDescriptor( cccd, indicate ? BluetoothGattDescriptor.ENABLE_INDICATION_VALUE
+                                                               : BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE );
+    }
+
+    /**
+     * GATT 操作のキュー（接続後。ほかのキャラクタリスティックの読み書きに使う）
+     */
+    public GattOperationQueue getOperationQueue()
+    {
+        return mOperationQueue;
+    }
+
+    @Override
+    public InputStream getInputStream()
+    {
+        return mInputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream()
+    {
+        return mOutputStream;
+    }
+
+    @Override
+    public int getReceiveBufferSize()
+    {
+        return GattWritePacer.MAX_MTU;
+    }
+
+    /**
+     * 交渉済みの MTU
+     */
+    public int getMtu()
+    {
+        return mWritePacer.getMtu();
+    }
+
+    @Override
+    public void close()
+    {
+        synchronized( this ) {
+            if( mGattReleased ) {
+                return;
+            }
+            mGattReleased = true;
+            mClosed = true;
+            if( null != mBluetoothGatt ) {
+                mBluetoothGatt.disconnect();
+                mBluetoothGatt.close();
+            }
+        }
+        shutdown();
+    }
+
+    /**
+     * サービス探索の完了（GATT のコールバックスレッド）
+     * 振り分け表は、探索が終わったここで１回だけ作る。
+     */
+    void onServicesDiscovered( List<BluetoothGattService> services, int status )
+    {
+        if( BluetoothGatt.GATT_SUCCESS == status ) {
+            mNotificationIndex = new GattNotificationIndex( services );
+        }
+        GattOperationQueue operationQueue = mOperationQueue;
+        if( null != operationQueue ) {
+            operationQueue.onServicesDiscovered( status );
+        }
+    }
+
+    /**
+     * 受信した Notification を受信ストリームに渡す（GATT のコールバックスレッド）
+     * 読み出しが追いつかずに溢れたら、捨てて続けるとストリームに穴が空くので、切断する
+     * （Notification には再送がない。RFCOMM はデータを捨てない）。
+     */
+    void receive( byte[] value )
+    {
+        if( null == value || mClosed ) {
+            return;
+        }
+        if( !mReceiveQueue.offer( value ) ) {
+            mStats.onDroppedFrame();
+            shutdown();
+            return;
+        }
+        mStats.setRxQueueDepth( mReceiveQueue.size() );
+    }
+
+    /**
+     * 待っているスレッドを全て起こして、以降の送受信を失敗させる
+     */
+    private void shutdown()
+    {
+        mClosed = true;
+        mWritePacer.close();
+        mConnected.countDown();
+        GattOperationQueue operationQueue = mOperationQueue;
+        if( null != operationQueue ) {
+            operationQueue.close( new IOException( "GATT connection closed" ) );
+        }
+        mReceiveQueue.clear();
+        mReceiveQueue.offer( END_OF_STREAM );
+    }
+
+    private static <T> CompletableFuture<T> failed( IOException cause )
+    {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally( cause );
+        return future;
+    }
+
+    /**
+     * GATT 操作の完了待ち
+     * 操作ごとのタイムアウトは GattOperationQueue 側で効くので、ここでは少し長めに待つ。
+     */
+    private static <T> T await( CompletableFuture<T> future, String operation ) throws IOException
+    {
+        try {
+            return future.get( GattOperationQueue.DEFAULT_TIMEOUT_MILLIS * ( GattOperationQueue.DEFAULT_RETRIES + 2 ), TimeUnit.MILLISECONDS );
+        } catch( ExecutionException e ) {
+            throw new IOException( operation + " failed", e.getCause() );
+        } catch( TimeoutException e ) {
+            throw new IOException( operation + " timeout", e );
+        } catch( InterruptedException e ) {
+            throw new IOException( e );
+        }
+    }
+}
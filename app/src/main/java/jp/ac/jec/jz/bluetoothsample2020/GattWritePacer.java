@@ -0,0 +1,183 @@
+package jp.ac.jec.jz.bluetoothsample2020;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * GATT の送信のペース配分（GattTransport の送信側）
+ * 交渉済みの MTU に収まる大きさ（MTU - 3）にパケットを分け、Write Without Response で連続して送る。
+ * 完了（onCharacteristicWrite）を待たずに MAX_PENDING_WRITES 個まで先に積み、それを超えたら古いものの完了を待つ。
+ * 複数パケットにまたがる送信の間は接続優先度を CONNECTION_PRIORITY_HIGH にし、
+ * 送信が BULK_IDLE_MILLIS 途切れたら CONNECTION_PRIORITY_BALANCED に戻す。
+ */
+public class GattWritePacer
+{
+    // 定数
+    public static final int  DEFAULT_MTU        = 23;       // 交渉前（交渉に失敗した場合も）の MTU
+    public static final int  MAX_MTU            = 517;      // ATT の最大（512バイトの値 + ヘッダ）
+    public static final int  ATT_HEADER_SIZE    = 3;
+    public static final int  MAX_PENDING_WRITES = 8;        // 完了を待たずに積んでおく送信パケット数
+    public static final long BULK_IDLE_MILLIS   = 500;      // 送信がこの時間途切れたら、接続優先度を戻す
+    private static final long WRITE_TIMEOUT_MILLIS = GattOperationQueue.DEFAULT_TIMEOUT_MILLIS * ( GattOperationQueue.DEFAULT_RETRIES + 2 );
+
+    /**
+     * パケットの送り先（GattTransport が GattOperationQueue と BluetoothGatt につなぐ）
+     */
+    public interface PacketWriter
+    {
+        /**
+         * １パケットの送信（Write Without Response）
+         * @param packet 送る値（呼び出し後に変更しない）
+         * @return コントローラーが受け取ったら完了
+         */
+        CompletableFuture<Void> writePacket( byte[] packet );
+
+        /**
+         * 接続優先度の変更（BluetoothGatt.CONNECTION_PRIORITY_～）
+         */
+        void requestConnectionPriority( int priority );
+    }
+
+    // メンバー変数
+    private final PacketWriter mWriter;
+    private final Handler mHandler = new Handler( Looper.getMainLooper() );
+    private final ArrayDeque<CompletableFuture<Void>> mPendingWrites = new ArrayDeque<>();    // 送信スレッドのみ
+    private final AtomicBoolean mBulk = new AtomicBoolean( false );    // 接続優先度を HIGH にしているか
+    private volatile int     mMtu = DEFAULT_MTU;
+    private volatile boolean mClosed = false;
+
+    // 送信が途切れたら接続優先度を戻す
+    private final Runnable mEndBulk = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            if( mBulk.compareAndSet( true, false ) && !mClosed ) {
+                mWriter.requestConnectionPriority( BluetoothGatt.CONNECTION_PRIORITY_BALANCED );
+            }
+        }
+    };
+
+    /**
+     * constructor
+     * @param writer パケットの送り先
+     */
+    public GattWritePacer( PacketWriter writer )
+    {
+        mWriter = writer;
+    }
+
+    /**
+     * MTU 交渉の結果の反映
+     * 交渉に失敗した（失敗・タイムアウト・範囲外の値）場合は、既定の MTU のまま続ける。
+     * @param request GattOperationQueue.requestMtu() の結果
+     * @return 使う MTU
+     */
+    public int negotiateMtu( CompletableFuture<Integer> request )
+    {
+        int mtu = DEFAULT_MTU;
+        try {
+            Integer result = request.get( WRITE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS );
+            if( null != result && DEFAULT_MTU <= result && MAX_MTU >= result ) {
+                mtu = result;
+            }
+        } catch( ExecutionException | TimeoutException e ) {
+            // 既定の MTU で続ける
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+        mMtu = mtu;
+        return mtu;
+    }
+
+    /**
+     * 使っている MTU
+     */
+    public int getMtu()
+    {
+        return mMtu;
+    }
+
+    /**
+     * １パケットに入る値の大きさ
+     */
+    public int getPayloadSize()
+    {
+        return mMtu - ATT_HEADER_SIZE;
+    }
+
+    /**
+     * 送信（全パケットがコントローラーに渡るまでブロックする）
+     * １パケットでも失敗したら、まだ送っていない残りのパケットは取り消す。
+     * @throws IOException 送信失敗、または、close() 済み
+     */
+    public void write( byte[] buffer, int offset, int length ) throws IOException
+    {
+        synchronized( mPendingWrites ) {
+            if( mClosed ) {
+                throw new IOException( "GATT connection closed" );
+            }
+            int payloadSize = getPayloadSize();
+            mHandler.removeCallbacks( mEndBulk );
+            if( length > payloadSize && mBulk.compareAndSet( false, true ) ) {
+                mWriter.requestConnectionPriority( BluetoothGatt.CONNECTION_PRIORITY_HIGH );
+            }
+            try {
+                while( 0 < length ) {
+                    int size = Math.min( length, payloadSize );
+                    byte[] packet = new byte[size];
+                    System.arraycopy( buffer, offset, packet, 0, size );
+                    if( MAX_PENDING_WRITES <= mPendingWrites.size() ) {
+                        await( mPendingWrites.pollFirst() );
+                    }
+                    mPendingWrites.addLast( mWriter.writePacket( packet ) );
+                    offset += size;
+                    length -= size;
+                }
+                while( !mPendingWrites.isEmpty() ) {
+                    await( mPendingWrites.pollFirst() );
+                }
+            } finally {
+                // 失敗した時は、積んだままのパケットを取り消す（穴の空いた続きを送らない。キューは完了済みの操作を飛ばす）
+                for( CompletableFuture<Void> pending : mPendingWrites ) {
+                    pending.cancel( false );
+                }
+                mPendingWrites.clear();
+                if( mBulk.get() ) {
+                    mHandler.postDelayed( mEndBulk, BULK_IDLE_MILLIS );
+                }
+            }
+        }
+    }
+
+    /**
+     * 以降の送信を失敗させ、接続優先度の戻しも取り消す（切断時）
+     */
+    public void close()
+    {
+        mClosed = true;
+        mHandler.removeCallbacks( mEndBulk );
+    }
+
+    private static void await( CompletableFuture<Void> future ) throws IOException
+    {
+        try {
+            future.get( WRITE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS );
+        } catch( ExecutionException e ) {
+            throw new IOException( "write failed", e.getCause() );
+        } catch( TimeoutException e ) {
+            throw new IOException( "write timeout", e );
+        } catch( InterruptedException e ) {
+            throw new IOException( e );
+        }
+    }
+}
@@ -7,10 +7,10 @@ import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
@@ -23,7 +23,11 @@ import android.widget.Button;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.util.UUID;
 
 public class MainActivity extends AppCompatActivity implements View.OnClickListener {
@@ -42,6 +46,38 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         // CF Shutter はHID（0x1812）を使うらしい。が、これでもCONNECT_FAILED。
         public static final UUID UUID_HID = UUID.fromString("00001812-0000-1000-8000-00805f9b34fb");
 
+        // 既定の通信路（RFCOMM）
+        public static final BluetoothTransport.Factory RFCOMM = device -> new SocketTransport( device.createRfcommSocketToServiceRecord( UUID_HID ) );
+
+        /**
+         * L2CAP CoC（Connection-oriented Channel）の通信路
+         * RFCOMM のクレジット制フレーミングを経由しないので、大量転送のスループットが上がる。
+         * API 29 未満の端末では、RFCOMM にフォールバックする。
+         * @param psm    相手側が公開している PSM
+         * @param secure true なら暗号化・認証あり（createL2capChannel）、false なら createInsecureL2capChannel
+         * @return 通信路の生成
+         */
+        public static BluetoothTransport.Factory l2cap( int psm, boolean secure )
+        {
+            return device -> {
+                if( Build.VERSION.SDK_INT < Build.VERSION_CODES.Q ) {
+                    return RFCOMM.create( device );
+                }
+                return new SocketTransport( secure ? device.createL2capChannel( psm ) : device.createInsecureL2capChannel( psm ) );
+            };
+        }
+
+        /**
+         * BLE GATT（Nordic UART Service）の通信路
+         * MTU の交渉と Write Without Response の連続送信で、RFCOMM と同じ送受信 API を提供する。
+         * @param context connectGatt() に渡すコンテキスト
+         * @return 通信路の生成
+         */
+        public static BluetoothTransport.Factory gatt( Context context )
+        {
+            return GattTransport.factory( context, GattTransport.UUID_NUS_SERVICE, GattTransport.UUID_NUS_RX, GattTransport.UUID_NUS_TX );
+        }
+
         // 定数
         public static final int MESSAGE_STATECHANGE    = 1;
         public static final int STATE_NONE             = 0;
@@ -51,28 +87,46 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         public static final int STATE_CONNECTION_LOST  = 4;
         public static final int STATE_DISCONNECT_START = 5;
         public static final int STATE_DISCONNECTED     = 6;
+        public static final String THREAD_NAME_PREFIX  = "BluetoothService-";
+
+        /**
+         * 受信データの通知先
+         * 受信スレッドから呼ばれる。buffer は使い回すので、保持する場合はコピーすること。
+         */
+        public interface OnReceiveListener
+        {
+            void onReceive( byte[] buffer, int length );
+        }
 
         // メンバー変数
-        private int              mState;
+        private volatile int     mState;    // 接続スレッドがロックなしで参照する
         private ConnectionThread mConnectionThread;
         private Handler mHandler;
+        private final ConnectionStats mStats;    // 通信カウンタ（dumpsys・診断画面用）
+        private volatile OnReceiveListener mOnReceiveListener;
 
         /**
          * 接続時処理用のスレッドを表すクラス
          */
         private class ConnectionThread extends Thread {
-            private BluetoothSocket mBluetoothSocket;
+            private BluetoothTransport mTransport;
+            private InputStream        mInputStream;
+            private OutputStream       mOutputStream;
+            private byte[]             mReadBuffer;    // 受信バッファ（接続時に１回だけ確保して使い回す）
 
             /**
              * スレッドのコンストラクタ
              * @param bluetoothdevice
+             * @param factory
              */
-            public ConnectionThread( BluetoothDevice bluetoothdevice )
+            public ConnectionThread( BluetoothDevice bluetoothdevice, BluetoothTransport.Factory factory )
             {
+                super( THREAD_NAME_PREFIX + bluetoothdevice.getAddress() );
                 try {
-                    mBluetoothSocket = bluetoothdevice.createRfcommSocketToServiceRecord( UUID_HID );
+                    mTransport = factory.create( bluetoothdevice );
                 } catch( IOException e ) {
-                    Log.e( "BluetoothService", "failed : bluetoothdevice.createRfcommSocketToServiceRecord( UUID_SPP )", e );
+                    // mTransport が null のままなら、接続開始時に接続失敗になる
+                    Log.e( "BluetoothService", "failed : factory.create( bluetoothdevice )", e );
                 }
             }
 
@@ -88,22 +142,47 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
                         case STATE_CONNECT_START:
                             // 接続開始
                             try {
-                                // BluetoothSocketオブジェクトを用いて、Bluetoothデバイスに接続を試みる。
-                                mBluetoothSocket.connect();
+                                if( null == mTransport ) {
+                                    throw new IOException( "transport is not created" );
+                                }
+                                // 通信路（BluetoothSocketなど）を用いて、Bluetoothデバイスに接続を試みる。
+                                mTransport.connect();
+                                mInputStream = mTransport.getInputStream();
+                                mOutputStream = mTransport.getOutputStream();
+                                mReadBuffer = new byte[mTransport.getReceiveBufferSize()];
                             } catch( IOException e ) {
-                                // 接続失敗
-                                Log.d( "BluetoothService", "Failed : mBluetoothSocket.connect()" );
-                                setState( STATE_CONNECT_FAILED );
-                                cancel();    // スレッド終了。
-                                return;
+                                // 接続失敗（切断処理で cancel() にソケットを閉じられた場合は、失敗扱いにしない）
+                                if( changeState( STATE_CONNECT_START, STATE_CONNECT_FAILED ) ) {
+                                    TraceLog.trace( TraceLog.EVENT_CONNECT_FAILED, System.identityHashCode( BluetoothService.this ) );
+                                    cancel();    // スレッド終了。
+                                }
+                                break;
                             }
-                            // 接続成功
-                            setState( STATE_CONNECTED );
+                            // 接続成功（connect() の完了直前に切断が始まっていた場合は、状態を戻さない）
+                            changeState( STATE_CONNECT_START, STATE_CONNECTED );
                             break;
                         case STATE_CONNECT_FAILED:        // 接続失敗
                             // 接続失敗時の処理の実体は、cancel()。
                             break;
                         case STATE_CONNECTED:        // 接続済み（Bluetoothデバイスから送信されるデータ受信）
+                            int bytes;
+                            try {
+                                bytes = mInputStream.read( mReadBuffer );
+                            } catch( IOException e ) {
+                                bytes = -1;
+                            }
+                            mStats.onRead( bytes );
+                            if( 0 > bytes ) {
+                                // 切断処理中（cancel() がソケットを閉じた）でなければ、接続ロスト
+                                if( changeState( STATE_CONNECTED, STATE_CONNECTION_LOST ) ) {
+                                    cancel();
+                                }
+                                break;
+                            }
+                            OnReceiveListener listener = mOnReceiveListener;
+                            if( null != listener && 0 < bytes ) {
+                                listener.onReceive( mReadBuffer, bytes );
+                            }
                             break;
                         case STATE_CONNECTION_LOST:    // 接続ロスト
                             // 接続ロスト時の処理の実体は、cancel()。
@@ -123,15 +202,23 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
 
             /**
              * キャンセル（接続を終了する。ステータスをSTATE_DISCONNECTEDにすることによってスレッドも終了する）
+             * 切断要求と接続ロストが重なっても、ソケットを閉じるのは１回だけ。
              */
             public void cancel()
             {
-                try {
-                    mBluetoothSocket.close();
-                } catch( IOException e ) {
-                    Log.e( "BluetoothService", "Failed : mBluetoothSocket.close()", e );
+                synchronized( BluetoothService.this ) {
+                    if( STATE_DISCONNECTED == mState ) {
+                        return;
+                    }
+                    if( null != mTransport ) {
+                        try {
+                            mTransport.close();
+                        } catch( IOException e ) {
+                            Log.e( "BluetoothService", "Failed : mTransport.close()", e );
+                        }
+                    }
+                    setState( STATE_DISCONNECTED );
                 }
-                setState( STATE_DISCONNECTED );
             }
 
         }
@@ -143,29 +230,62 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
          * @param device
          */
         public BluetoothService( Context context, Handler handler, BluetoothDevice device )
+        {
+            this( context, handler, device, RFCOMM );
+        }
+
+        /**
+         * BluetoothService コンストラクタ（通信路の指定あり）
+         * @param context
+         * @param handler
+         * @param device
+         * @param factory 通信路の生成
+         */
+        public BluetoothService( Context context, Handler handler, BluetoothDevice device, BluetoothTransport.Factory factory )
         {
             mHandler = handler;
             mState = STATE_NONE;
+            mStats = ConnectionStats.forAddress( device.getAddress() );
 
-            // 接続時処理用スレッドの作成と開始
-            mConnectionThread = new ConnectionThread( device );
-            mConnectionThread.start();
+            // 接続時処理用スレッドの作成（開始は connect() で行う。接続前から回しておくと空回りするだけ）
+            mConnectionThread = new ConnectionThread( device, factory );
 
-            // つかえるUUIDとってみる
+            // つかえるUUIDとってみる（未取得の場合は null）
             ParcelUuid[] uuidList = device.getUuids();
-            for (ParcelUuid id: uuidList) {
-                Log.d(TAG, "BluetoothService: UUID: " + id.toString());
+            if( null != uuidList ) {
+                for (ParcelUuid id: uuidList) {
+                    UUID uuid = id.getUuid();
+                    TraceLog.trace( TraceLog.EVENT_SERVICE_UUID, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits() );
+                }
             }
         }
 
         /**
          * ステータスの設定
+         * メッセージの obj には自分自身を入れる（古い BluetoothService からのメッセージを見分けるため）
          * @param state
          */
         private synchronized void setState( int state )
         {
             mState = state;
-            mHandler.obtainMessage( MESSAGE_STATECHANGE, state, -1 ).sendToTarget();
+            TraceLog.trace( TraceLog.EVENT_STATE_CHANGE, System.identityHashCode( this ), state );
+            mHandler.obtainMessage( MESSAGE_STATECHANGE, state, -1, this ).sendToTarget();
+        }
+
+        /**
+         * ステータスの変更（現在のステータスが expected の場合だけ）
+         * 接続スレッドと、切断を要求するスレッドの競合を避けるために使う。
+         * @param expected
+         * @param state
+         * @return 変更したら true
+         */
+        private synchronized boolean changeState( int expected, int state )
+        {
+            if( expected != mState ) {
+                return false;
+            }
+            setState( state );
+            return true;
         }
 
         /**
@@ -179,21 +299,89 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
                 return;
             }
 
+            mStats.onConnect();
             setState( STATE_CONNECT_START );
+            mConnectionThread.start();
         }
 
         /**
          * 切断処理
+         * 接続済みだけでなく、接続処理中でもソケットを閉じて、スレッドを確実に終わらせる。
          */
         public synchronized void disconnect()
         {
-            if( STATE_CONNECTED != mState ) {
-                // 接続中以外は、処理しない。
-                return;
+            switch( mState ) {
+                case STATE_NONE:
+                    // connect() 前。スレッドは未起動なので、状態だけ終わらせる。
+                    setState( STATE_DISCONNECTED );
+                    return;
+                case STATE_DISCONNECT_START:
+                case STATE_DISCONNECTED:
+                    // 切断中か、切断済み。
+                    return;
             }
             setState( STATE_DISCONNECT_START );
             mConnectionThread.cancel();
         }
+
+        /**
+         * 現在のステータス（STATE_～）
+         */
+        public int getState()
+        {
+            return mState;
+        }
+
+        /**
+         * 接続中の通信路（STATE_CONNECTED の間だけ。それ以外は null）
+         * 通信路ごとの機能を使う時に、キャストして使う（例: GattTransport の subscribe() で、ほかのキャラクタリスティックも購読する）。
+         */
+        public synchronized BluetoothTransport getTransport()
+        {
+            if( STATE_CONNECTED != mState ) {
+                return null;
+            }
+            return mConnectionThread.mTransport;
+        }
+
+        /**
+         * 受信データの通知先の設定
+         * @param listener null で解除
+         */
+        public void setOnReceiveListener( OnReceiveListener listener )
+        {
+            mOnReceiveListener = listener;
+        }
+
+        /**
+         * 送信
+         * ブロックするので、UIスレッドからは呼ばないこと。
+         * @param buffer
+         * @param offset
+         * @param length
+         * @throws IOException 未接続、または、送信失敗
+         */
+        public void write( byte[] buffer, int offset, int length ) throws IOException
+        {
+            OutputStream outputStream;
+            synchronized( this ) {
+                if( STATE_CONNECTED != mState ) {
+                    throw new IOException( "not connected" );
+                }
+                outputStream = mConnectionThread.mOutputStream;
+            }
+            long start = System.nanoTime();
+            outputStream.write( buffer, offset, length );
+            mStats.onWrite( length, System.nanoTime() - start );
+        }
+
+        /**
+         * 通信カウンタ
+         */
+        public ConnectionStats getStats()
+        {
+            return mStats;
+        }
     }
 
     /// 定数 ////////////////////////////////////////////////////////////////////
@@ -206,6 +394,7 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
     private BluetoothAdapter mBluetoothAdapter;    // BluetoothAdapter : Bluetooth処理で必要
     private String mDeviceAddress = "";    // デバイスアドレス
     private BluetoothService mBluetoothService;    // BluetoothService : Bluetoothデバイスとの通信処理を担う
+    BluetoothTransport.Factory mTransportFactory = BluetoothService.RFCOMM;    // 通信路の生成（テストでは偽の通信路に差し替える）
 
     // GUIアイテム
     private Button mButton_Connect;    // 接続ボタン
@@ -223,6 +412,11 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
             switch( msg.what )
             {
                 case BluetoothService.MESSAGE_STATECHANGE:
+                    if( null != mBluetoothService && msg.obj != mBluetoothService ) {
+                        // 切断済みの（古い）BluetoothServiceからのメッセージは無視する。
+                        // 処理すると、接続中の新しいBluetoothServiceを解放してしまう。
+                        break;
+                    }
                     switch( msg.arg1 )
                     {
                         case BluetoothService.STATE_NONE:            // 未接続
@@ -231,7 +425,7 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
                             break;
                         case BluetoothService.STATE_CONNECT_FAILED:            // 接続失敗
                             Toast.makeText( MainActivity.this, "Failed to connect to the device.", Toast.LENGTH_SHORT ).show();
-                            Log.d(TAG, "handleMessage: Failed to connect: " + msg);
+                            TraceLog.trace( TraceLog.EVENT_HANDLER_MESSAGE, msg.what, msg.arg1, msg.arg2 );
                             break;
                         case BluetoothService.STATE_CONNECTED:    // 接続完了
                             // GUIアイテムの有効無効の設定
@@ -370,6 +564,7 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
                 }
                 ( (TextView)findViewById( R.id.textview_devicename ) ).setText( strDeviceName );
                 ( (TextView)findViewById( R.id.textview_deviceaddress ) ).setText( mDeviceAddress );
+                invalidateOptionsMenu();    // 再検索メニューの表示の更新
                 break;
         }
         super.onActivityResult( requestCode, resultCode, data );
@@ -383,6 +578,15 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         return true;
     }
 
+    // オプションメニュー表示前の処理
+    @Override
+    public boolean onPrepareOptionsMenu( Menu menu )
+    {
+        // 前回のデバイスが無ければ、再検索は出さない
+        menu.findItem( R.id.menuitem_search_last ).setVisible( !mDeviceAddress.equals( "" ) );
+        return super.onPrepareOptionsMenu( menu );
+    }
+
     /**
      * 接続ボタンの動作
      * @param v
@@ -421,7 +625,7 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
 
         // 接続
         BluetoothDevice device = mBluetoothAdapter.getRemoteDevice( mDeviceAddress );
-        mBluetoothService = new BluetoothService( this, mHandler, device );
+        mBluetoothService = new BluetoothService( this, mHandler, device, mTransportFactory );
         mBluetoothService.connect();
     }
 
@@ -440,6 +644,14 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         mBluetoothService = null;
     }
 
+    /**
+     * 現在の BluetoothService（切断済みなら null）
+     */
+    BluetoothService getBluetoothService()
+    {
+        return mBluetoothService;
+    }
+
     /// メニュー関連 //////////////////////////////////////////////////////////////
     // オプションメニューのアイテム選択時の処理
     @Override
@@ -451,8 +663,32 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
                 Intent devicelistactivityIntent = new Intent( this, DeviceListActivity.class );
                 startActivityForResult( devicelistactivityIntent, REQUEST_CONNECTDEVICE );
                 return true;
+            case R.id.menuitem_search_last:
+                // 前回のデバイスだけを探す（見つかった時点でスキャンを止めて戻ってくる）
+                Intent targetedIntent = new Intent( this, DeviceListActivity.class );
+                targetedIntent.putExtra( DeviceListActivity.EXTRAS_TARGET_ADDRESSES, new String[]{ mDeviceAddress } );
+                startActivityForResult( targetedIntent, REQUEST_CONNECTDEVICE );
+                return true;
+            case R.id.menuitem_diagnostics:
+                startActivity( new Intent( this, DiagnosticsActivity.class ) );
+                return true;
         }
         return false;
     }
 
+    /**
+     * adb shell dumpsys activity jp.ac.jec.jz.bluetoothsample2020 で出力される内容
+     */
+    @Override
+    public void dump( String prefix, FileDescriptor fd, PrintWriter writer, String[] args )
+    {
+        super.dump( prefix, fd, writer, args );
+
+        writer.print( prefix );
+        writer.println( "Bluetooth connection stats:" );
+        ConnectionStats.dumpAll( writer, prefix + "  " );
+        writer.print( prefix );
+        writer.println( "Bluetooth trace:" );
+        TraceLog.dump( writer, prefix + "  " );
+    }
 }
\ No newline at end of file
@@ -0,0 +1,83 @@
+package jp.ac.jec.jz.bluetoothsample2020;
+
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * BluetoothSocket をそのまま使う通信路（RFCOMM / L2CAP CoC 共通）
+ */
+public class SocketTransport implements BluetoothTransport
+{
+    private final BluetoothSocket mBluetoothSocket;
+
+    public SocketTransport( BluetoothSocket socket )
+    {
+        mBluetoothSocket = socket;
+    }
+
+    @Override
+    public void connect() throws IOException
+    {
+        mBluetoothSocket.connect();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException
+    {
+        return mBluetoothSocket.getInputStream();
+    }
+
+    /**
+     * L2CAP のソケットは、最大送信パケット長を超える書き込みを切り捨てるので、分割して書き込む
+     */
+    @Override
+    public OutputStream getOutputStream() throws IOException
+    {
+        final OutputStream outputStream = mBluetoothSocket.getOutputStream();
+        final int maxPacketSize = mBluetoothSocket.getMaxTransmitPacketSize();
+        if( 0 >= maxPacketSize ) {
+            return outputStream;
+        }
+        return new OutputStream()
+        {
+            @Override
+            public void write( int b ) throws IOException
+            {
+                outputStream.write( b );
+            }
+
+            @Override
+            public void write( byte[] buffer, int offset, int length ) throws IOException
+            {
+                while( 0 < length ) {
+                    int size = Math.min( length, maxPacketSize );
+                    outputStream.write( buffer, offset, size );
+                    offset += size;
+                    length -= size;
+                }
+            }
+
+            @Override
+            public void flush() throws IOException
+            {
+                outputStream.flush();
+            }
+        };
+    }
+
+    @Override
+    public int getReceiveBufferSize()
+    {
+        // L2CAP CoC は SDU 単位で受信するので、最大長に合わせる（RFCOMM は 0 以下が返ることがある）
+        return Math.max( DEFAULT_RECEIVE_BUFFER_SIZE, mBluetoothSocket.getMaxReceivePacketSize() );
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        mBluetoothSocket.close();
+    }
+}
@@ -0,0 +1,194 @@
+package jp.ac.jec.jz.bluetoothsample2020;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * バイナリ形式のトレースログ（リングバッファ）
+ * イベントID・時刻・最大４つの long 引数を、固定長のレコードとして確保済みのバッファに書くだけ。
+ * 記録時に文字列の連結やオブジェクトの生成はしないので、本番でも有効にしておける。
+ * 文字列への整形は dump() / dumpToLogcat() / dumpToFile() を呼んだ時だけ行う。
+ * バッファが一周したら、古いレコードから上書きされる。
+ */
+public final class TraceLog
+{
+    // イベントID（EVENT_NAMES の添字と一致させること）
+    public static final int EVENT_STATE_CHANGE    = 1;    // arg0: BluetoothService の識別子, arg1: ステータス
+    public static final int EVENT_CONNECT_FAILED  = 2;    // arg0: BluetoothService の識別子
+    public static final int EVENT_SERVICE_UUID    = 3;    // arg0: UUID 上位64bit, arg1: UUID 下位64bit
+    public static final int EVENT_HANDLER_MESSAGE = 4;    // arg0: what, arg1: arg1, arg2: arg2
+
+    private static final String[] EVENT_NAMES = {
+        "UNKNOWN",
+        "STATE_CHANGE",
+        "CONNECT_FAILED",
+        "SERVICE_UUID",
+        "HANDLER_MESSAGE",
+    };
+
+    // レコードの配置： [ヘッダ, 時刻(ns), arg0, arg1, arg2, arg3]
+    // ヘッダ = (通し番号 + 1) << 12 | イベントID << 4 | 引数の数。0 は未使用のレコード。
+    private static final int RECORD_LONGS = 6;
+    private static final int MAX_ARGS     = 4;
+    static final int CAPACITY             = 4096;    // レコード数（2のべき乗）
+
+    private static final AtomicLongArray sBuffer = new AtomicLongArray( CAPACITY * RECORD_LONGS );
+    private static final AtomicLong      sNext   = new AtomicLong();
+    private static volatile boolean sEnabled = true;
+
+    private TraceLog()
+    {
+    }
+
+    /**
+     * 記録の有効・無効
+     */
+    public static void setEnabled( boolean enabled )
+    {
+        sEnabled = enabled;
+    }
+
+    /// 記録 ////////////////////////////////////////////////////////////////////
+    // 可変長引数にすると配列が作られるので、引数の数ごとに用意する
+    public static void trace( int event )
+    {
+        record( event, 0, 0, 0, 0, 0 );
+    }
+
+    public static void trace( int event, long arg0 )
+    {
+        record( event, 1, arg0, 0, 0, 0 );
+    }
+
+    public static void trace( int event, long arg0, long arg1 )
+    {
+        record( event, 2, arg0, arg1, 0, 0 );
+    }
+
+    public static void trace( int event, long arg0, long arg1, long arg2 )
+    {
+        record( event, 3, arg0, arg1, arg2, 0 );
+    }
+
+    public static void trace( int event, long arg0, long arg1, long arg2, long arg3 )
+    {
+        record( event, 4, arg0, arg1, arg2, arg3 );
+    }
+
+    private static void record( int event, int argc, long arg0, long arg1, long arg2, long arg3 )
+    {
+        if( !sEnabled ) {
+            return;
+        }
+        long sequence = sNext.getAndIncrement();
+        int base = (int)( sequence & ( CAPACITY - 1 ) ) * RECORD_LONGS;
+        // 書き込み中のレコードを dump() が読まないように、ヘッダを先に消して最後に書く
+        sBuffer.set( base, 0 );
+        sBuffer.lazySet( base + 1, System.nanoTime() );
+        sBuffer.lazySet( base + 2, arg0 );
+        sBuffer.lazySet( base + 3, arg1 );
+        sBuffer.lazySet( base + 4, arg2 );
+        sBuffer.lazySet( base + 5, arg3 );
+        sBuffer.set( base, ( ( sequence + 1 ) << 12 ) | ( ( event & 0xFF ) << 4 ) | argc );
+    }
+
+    /// 出力 ////////////////////////////////////////////////////////////////////
+    /**
+     * バッファの内容を古い順に出力する
+     * 時刻は最後のレコードからの相対時間（ミリ秒）。
+     * @param writer 出力先
+     * @param prefix 行頭に付ける文字列
+     */
+    public static void dump( PrintWriter writer, String prefix )
+    {
+        long next  = sNext.get();
+        long first = Math.max( 0, next - CAPACITY );
+        long[] record = new long[RECORD_LONGS];
+        long lastTime = 0;
+        for( long sequence = next - 1; sequence >= first; sequence-- ) {
+            if( readRecord( sequence, record ) ) {
+                lastTime = record[1];
+                break;
+            }
+        }
+        for( long sequence = first; sequence < next; sequence++ ) {
+            if( !readRecord( sequence, record ) ) {
+                continue;    // 書き込み中か、上書き済み
+            }
+            writer.print( prefix );
+            writer.println( format( record, lastTime ) );
+        }
+    }
+
+    /**
+     * バッファの内容を logcat に出力する
+     * @param tag ログのタグ
+     */
+    public static void dumpToLogcat( String tag )
+    {
+        StringWriter stringWriter = new StringWriter();
+        PrintWriter writer = new PrintWriter( stringWriter );
+        dump( writer, "" );
+        writer.flush();
+        for( String line : stringWriter.toString().split( "\n" ) ) {
+            Log.i( tag, line );
+        }
+    }
+
+    /**
+     * バッファの内容をファイルに出力する
+     * @param file 出力先（上書き）
+     * @throws IOException
+     */
+    public static void dumpToFile( File file ) throws IOException
+    {
+        try( PrintWriter writer = new PrintWriter( new FileWriter( file ) ) ) {
+            dump( writer, "" );
+        }
+    }
+
+    /**
+     * レコードを読み出す
+     * @return 読み出している間に上書きされなければ true
+     */
+    private static boolean readRecord( long sequence, long[] record )
+    {
+        int base = (int)( sequence & ( CAPACITY - 1 ) ) * RECORD_LONGS;
+        long header = sBuffer.get( base );
+        if( ( header >>> 12 ) != sequence + 1 ) {
+            return false;
+        }
+        for( int i = 1; i < RECORD_LONGS; i++ ) {
+            record[i] = sBuffer.get( base + i );
+        }
+        record[0] = header;
+        return header == sBuffer.get( base );
+    }
+
+    private static String format( long[] record, long lastTime )
+    {
+        int event = (int)( ( record[0] >>> 4 ) & 0xFF );
+        int argc  = (int)( record[0] & 0xF );
+        String name = ( event < EVENT_NAMES.length ) ? EVENT_NAMES[event] : EVENT_NAMES[0] + "(" + event + ")";
+
+        StringBuilder builder = new StringBuilder();
+        builder.append( String.format( "%+10.3fms ", ( record[1] - lastTime ) / 1e6 ) );
+        builder.append( name );
+        if( EVENT_SERVICE_UUID == event && 2 == argc ) {
+            builder.append( ' ' ).append( new UUID( record[2], record[3] ) );
+            return builder.toString();
+        }
+        for( int i = 0; i < Math.min( argc, MAX_ARGS ); i++ ) {
+            builder.append( ' ' ).append( record[2 + i] );
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,339 @@
+package jp.ac.jec.jz.bluetoothsample2020;
+
+import android.app.Activity;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.widget.Button;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.android.controller.ActivityController;
+import org.robolectric.annotation.LooperMode;
+import org.robolectric.shadows.ShadowBluetoothDevice;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+import jp.ac.jec.jz.bluetoothsample2020.MainActivity.BluetoothService;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * BluetoothService の接続・切断を大量に繰り返すストレステスト
+ * 偽の通信路（FakeTransport）で、接続・切断・ポーズ（接続中の切断）・再開・接続ロストを並行に繰り返し、
+ * 接続スレッドとヒープが増え続けないこと、１サイクルあたりの時間を確認する。
+ * MainActivity についても、ActivityController でポーズ・再開・ボタン操作を繰り返し、
+ * 古い BluetoothService からのメッセージで現在の接続が解放されないことを確認する。
+ */
+@RunWith( RobolectricTestRunner.class )
+@Config( sdk = 28 )
+@LooperMode( LooperMode.Mode.PAUSED )
+public class BluetoothServiceStressTest {
+
+    private static final int  WORKERS             = 8;
+    private static final int  CYCLES_PER_WORKER   = 500;
+    private static final int  WARMUP_CYCLES       = 100;
+    private static final long TIMEOUT_MILLIS      = 5000;
+    private static final long HEAP_GROWTH_LIMIT   = 16L * 1024 * 1024;
+    private static final int  ACTIVITY_CYCLES     = 200;
+
+    /**
+     * １サイクル分の状態変化待ち
+     */
+    private static class Probe
+    {
+        final CountDownLatch connected    = new CountDownLatch( 1 );
+        final CountDownLatch disconnected = new CountDownLatch( 1 );
+    }
+
+    private final ConcurrentHashMap<Object, Probe> mProbes = new ConcurrentHashMap<>();
+    private HandlerThread mHandlerThread;
+    private Handler mHandler;
+
+    @Before
+    public void setUp()
+    {
+        mHandlerThread = new HandlerThread( "StressHandler" );
+        mHandlerThread.start();
+        mHandler = new Handler( mHandlerThread.getLooper() )
+        {
+            @Override
+            public void handleMessage( Message msg )
+            {
+                Probe probe = mProbes.get( msg.obj );
+                if( null == probe ) {
+                    return;
+                }
+                switch( msg.arg1 ) {
+                    case BluetoothService.STATE_CONNECTED:
+                        probe.connected.countDown();
+                        break;
+                    case BluetoothService.STATE_DISCONNECTED:
+                        probe.disconnected.countDown();
+                        break;
+                }
+            }
+        };
+    }
+
+    @After
+    public void tearDown()
+    {
+        mHandlerThread.quit();
+    }
+
+    @Test
+    public void connectDisconnectChurn_keepsThreadsAndHeapFlat() throws Exception
+    {
+        // ウォームアップ（クラスロードや JIT の分をヒープ計測から外す）
+        runCycles( 0, WARMUP_CYCLES );
+        assertEquals( 0, awaitConnectionThreads() );
+        long heapBefore = usedHeap();
+
+        ExecutorService executor = Executors.newFixedThreadPool( WORKERS );
+        List<Future<long[]>> futures = new ArrayList<>();
+        for( int i = 0; i < WORKERS; i++ ) {
+            final int worker = i;
+            futures.add( executor.submit( () -> runCycles( worker, CYCLES_PER_WORKER ) ) );
+        }
+        long[] latencies = new long[WORKERS * CYCLES_PER_WORKER];
+        for( int i = 0; i < WORKERS; i++ ) {
+            System.arraycopy( futures.get( i ).get(), 0, latencies, i * CYCLES_PER_WORKER, CYCLES_PER_WORKER );
+        }
+        executor.shutdown();
+        assertTrue( executor.awaitTermination( TIMEOUT_MILLIS, TimeUnit.MILLISECONDS ) );
+
+        // 接続スレッドが残っていないこと
+        assertEquals( 0, awaitConnectionThreads() );
+
+        // ヒープが増え続けていないこと
+        mProbes.clear();
+        long heapGrowth = usedHeap() - heapBefore;
+        assertTrue( "heap grew by " + heapGrowth + " bytes", heapGrowth < HEAP_GROWTH_LIMIT );
+
+        report( latencies );
+    }
+
+    @Test
+    public void mainActivityPauseResumeChurn_keepsCurrentService() throws Exception
+    {
+        shadowOf( RuntimeEnvironment.application.getPackageManager() ).setSystemFeature( PackageManager.FEATURE_BLUETOOTH_LE, true );
+        shadowOf( BluetoothAdapter.getDefaultAdapter() ).setEnabled( true );
+        ActivityController<MainActivity> controller = Robolectric.buildActivity( MainActivity.class ).setup();
+        MainActivity activity = controller.get();
+        List<FakeTransport> transports = new CopyOnWriteArrayList<>();
+        activity.mTransportFactory = device -> {
+            FakeTransport transport = new FakeTransport( ThreadLocalRandom.current().nextInt( 3 ) );
+            transports.add( transport );
+            return transport;
+        };
+        Button connectButton = activity.findViewById( R.id.button_connect );
+        Button disconnectButton = activity.findViewById( R.id.button_disconnect );
+
+        // デバイスリストで選択したことにする
+        shadowOf( activity ).clickMenuItem( R.id.menuitem_search );
+        Intent request = shadowOf( activity ).getNextStartedActivityForResult().intent;
+        Intent result = new Intent();
+        result.putExtra( DeviceListActivity.EXTRAS_DEVICE_NAME, "FakeDevice" );
+        result.putExtra( DeviceListActivity.EXTRAS_DEVICE_ADDRESS, "00:11:22:33:66:01" );
+        shadowOf( activity ).receiveResult( request, Activity.RESULT_OK, result );
+        controller.pause().resume();    // 復帰時の自動接続
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for( int i = 0; i < ACTIVITY_CYCLES; i++ ) {
+            switch( random.nextInt( 4 ) ) {
+                case 0:    // 接続中にポーズ → 再開（古い BluetoothService のメッセージが、新しい接続の開始後に届く）
+                    controller.pause().resume();
+                    break;
+                case 1:    // 接続完了後にポーズ → 再開
+                    assertTrue( awaitConnected( activity ) );
+                    controller.pause().resume();
+                    break;
+                case 2:    // 切断ボタン → 接続ボタン
+                    assertTrue( awaitConnected( activity ) );
+                    disconnectButton.performClick();
+                    assertTrue( awaitMainLooper( connectButton::isEnabled ) );
+                    connectButton.performClick();
+                    break;
+                case 3:    // 接続ロスト → 接続ボタン
+                    assertTrue( awaitConnected( activity ) );
+                    transports.get( transports.size() - 1 ).close();
+                    assertTrue( awaitMainLooper( () -> null == activity.getBluetoothService() && connectButton.isEnabled() ) );
+                    connectButton.performClick();
+                    break;
+            }
+            // 古い BluetoothService の切断メッセージで、新しい接続が解放されていないこと
+            assertTrue( "cycle " + i + " lost the current BluetoothService", awaitConnected( activity ) );
+        }
+
+        controller.pause().stop().destroy();
+        shadowOf( Looper.getMainLooper() ).idle();
+        assertEquals( 0, awaitConnectionThreads() );
+        for( FakeTransport transport : transports ) {
+            assertTrue( transport.isClosed() );
+        }
+    }
+
+    /**
+     * MainActivity の現在の BluetoothService が接続完了になるのを待つ
+     */
+    private static boolean awaitConnected( MainActivity activity ) throws InterruptedException
+    {
+        return awaitMainLooper( () -> {
+            BluetoothService service = activity.getBluetoothService();
+            return null != service && BluetoothService.STATE_CONNECTED == service.getState();
+        } );
+    }
+
+    /**
+     * メインスレッドのメッセージを処理しながら、条件が成り立つのを待つ
+     */
+    private static boolean awaitMainLooper( BooleanSupplier condition ) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        do {
+            shadowOf( Looper.getMainLooper() ).idle();
+            if( condition.getAsBoolean() ) {
+                return true;
+            }
+            Thread.sleep( 1 );
+        } while( System.currentTimeMillis() < deadline );
+        return false;
+    }
+
+    /**
+     * 接続・切断サイクルを繰り返す
+     * @param worker 作業スレッドの番号（デバイスアドレスに使う）
+     * @param cycles 回数
+     * @return サイクルごとの所要時間（ナノ秒）
+     */
+    private long[] runCycles( int worker, int cycles ) throws Exception
+    {
+        BluetoothDevice device = ShadowBluetoothDevice.newInstance( String.format( "00:11:22:33:44:%02X", worker ) );
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long[] latencies = new long[cycles];
+
+        for( int i = 0; i < cycles; i++ ) {
+            AtomicReference<FakeTransport> transport = new AtomicReference<>();
+            long connectDelay = random.nextInt( 3 );
+            BluetoothTransport.Factory factory = d -> {
+                FakeTransport t = new FakeTransport( connectDelay );
+                transport.set( t );
+                return t;
+            };
+
+            long start = System.nanoTime();
+            BluetoothService service = new BluetoothService( RuntimeEnvironment.application, mHandler, device, factory );
+            Probe probe = new Probe();
+            mProbes.put( service, probe );
+
+            switch( random.nextInt( 5 ) ) {
+                case 0:    // 接続 → 接続完了 → 切断
+                    service.connect();
+                    assertTrue( probe.connected.await( TIMEOUT_MILLIS, TimeUnit.MILLISECONDS ) );
+                    service.disconnect();
+                    break;
+                case 1:    // 接続中にポーズ（onPause の切断）
+                    service.connect();
+                    service.disconnect();
+                    break;
+                case 2:    // 再開の連打（connect() の２回目は無視される）→ 切断
+                    service.connect();
+                    service.connect();
+                    service.disconnect();
+                    break;
+                case 3:    // 接続ロスト（相手側から切れる）→ その後の切断は何もしない
+                    service.connect();
+                    assertTrue( probe.connected.await( TIMEOUT_MILLIS, TimeUnit.MILLISECONDS ) );
+                    transport.get().close();
+                    assertTrue( probe.disconnected.await( TIMEOUT_MILLIS, TimeUnit.MILLISECONDS ) );
+                    service.disconnect();
+                    break;
+                case 4:    // onPause と onDestroy の切断が別スレッドから重なる
+                    service.connect();
+                    Thread other = new Thread( service::disconnect );
+                    other.start();
+                    service.disconnect();
+                    other.join();
+                    break;
+            }
+            assertTrue( "cycle " + i + " did not reach STATE_DISCONNECTED",
+                        probe.disconnected.await( TIMEOUT_MILLIS, TimeUnit.MILLISECONDS ) );
+            latencies[i] = System.nanoTime() - start;
+            mProbes.remove( service );
+        }
+        return latencies;
+    }
+
+    /**
+     * 接続スレッドが全て終わるのを待つ
+     * @return 残っている接続スレッドの数
+     */
+    private static int awaitConnectionThreads() throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        int count;
+        do {
+            count = 0;
+            for( Thread thread : Thread.getAllStackTraces().keySet() ) {
+                if( thread.getName().startsWith( BluetoothService.THREAD_NAME_PREFIX ) && thread.isAlive() ) {
+                    count++;
+                }
+            }
+            if( 0 == count ) {
+                break;
+            }
+            Thread.sleep( 10 );
+        } while( System.currentTimeMillis() < deadline );
+        return count;
+    }
+
+    private static long usedHeap() throws InterruptedException
+    {
+        Runtime runtime = Runtime.getRuntime();
+        for( int i = 0; i < 3; i++ ) {
+            System.gc();
+            Thread.sleep( 50 );
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void report( long[] latencies )
+    {
+        Arrays.sort( latencies );
+        System.out.printf( "connect/disconnect cycles: %d, latency p50=%.3fms p95=%.3fms p99=%.3fms max=%.3fms%n",
+                           latencies.length,
+                           percentile( latencies, 50 ), percentile( latencies, 95 ), percentile( latencies, 99 ),
+                           latencies[latencies.length - 1] / 1e6 );
+    }
+
+    private static double percentile( long[] sorted, int percent )
+    {
+        int index = Math.min( sorted.length - 1, sorted.length * percent / 100 );
+        return sorted[index] / 1e6;
+    }
+}
@@ -0,0 +1,57 @@
+package jp.ac.jec.jz.bluetoothsample2020;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+import org.robolectric.shadows.ShadowBluetoothDevice;
+
+import jp.ac.jec.jz.bluetoothsample2020.MainActivity.BluetoothService;
+
+import static org.junit.Assert.*;
+
+/**
+ * BluetoothService のテスト（偽の通信路 FakeTransport を使う）
+ */
+@RunWith( RobolectricTestRunner.class )
+@Config( sdk = 28 )
+@LooperMode( LooperMode.Mode.PAUSED )
+public class BluetoothServiceTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    @Test
+    public void getTransport_returnsLiveTransportOnlyWhileConnected() throws Exception
+    {
+        BluetoothDevice device = ShadowBluetoothDevice.newInstance( "00:11:22:33:44:55" );
+        FakeTransport transport = new FakeTransport( 0 );
+        BluetoothService service = new BluetoothService( RuntimeEnvironment.application, new Handler( Looper.getMainLooper() ), device, d -> transport );
+
+        assertNull( service.getTransport() );
+        service.connect();
+        assertTrue( awaitState( service, BluetoothService.STATE_CONNECTED ) );
+        assertSame( transport, service.getTransport() );
+
+        service.disconnect();
+        assertTrue( awaitState( service, BluetoothService.STATE_DISCONNECTED ) );
+        assertNull( service.getTransport() );
+    }
+
+    private static boolean awaitState( BluetoothService service, int state ) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while( state != service.getState() ) {
+            if( System.currentTimeMillis() > deadline ) {
+                return false;
+            }
+            Thread.sleep( 1 );
+        }
+        return true;
+    }
+}
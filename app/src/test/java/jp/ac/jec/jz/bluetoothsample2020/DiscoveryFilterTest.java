@@ -0,0 +1,106 @@
+package jp.ac.jec.jz.bluetoothsample2020;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.Intent;
+import android.os.ParcelUuid;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowBluetoothDevice;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * ターゲットスキャンの条件（DiscoveryFilter）と間欠スキャンの周期の補正のテスト
+ */
+@RunWith( RobolectricTestRunner.class )
+@Config( sdk = 28 )
+public class DiscoveryFilterTest {
+
+    private static final String HID_UUID = "00001124-0000-1000-8000-00805f9b34fb";
+
+    @Test
+    public void matches_addressIgnoringCase()
+    {
+        DiscoveryFilter filter = new DiscoveryFilter( new String[]{ "00:11:22:aa:bb:cc" }, null, null );
+
+        assertTrue( filter.matches( device( "00:11:22:AA:BB:CC", null ) ) );
+        assertFalse( filter.matches( device( "00:11:22:AA:BB:CD", null ) ) );
+    }
+
+    @Test
+    public void matches_wholeNameAgainstPattern()
+    {
+        DiscoveryFilter filter = new DiscoveryFilter( null, new String[]{ "M5Stack-.*" }, null );
+
+        assertTrue( filter.matches( device( "00:11:22:33:44:01", "M5Stack-01" ) ) );
+        assertFalse( filter.matches( device( "00:11:22:33:44:02", "My M5Stack-02" ) ) );
+        assertFalse( filter.matches( device( "00:11:22:33:44:03", null ) ) );
+    }
+
+    @Test
+    public void matches_cachedServiceUuid()
+    {
+        DiscoveryFilter filter = new DiscoveryFilter( null, null, new String[]{ HID_UUID } );
+        BluetoothDevice cached = device( "00:11:22:33:44:04", null );
+        shadowOf( cached ).setUuids( new ParcelUuid[]{ ParcelUuid.fromString( HID_UUID ) } );
+
+        assertTrue( filter.matches( cached ) );
+        assertFalse( filter.matches( device( "00:11:22:33:44:05", null ) ) );    // UUID 未取得
+    }
+
+    @Test
+    public void emptyFilter_matchesNothing()
+    {
+        DiscoveryFilter filter = DiscoveryFilter.fromIntent( new Intent() );
+
+        assertTrue( filter.isEmpty() );
+        assertFalse( filter.matches( device( "00:11:22:33:44:06", "M5Stack-06" ) ) );
+    }
+
+    @Test
+    public void invalidExtras_areIgnored()
+    {
+        Intent intent = new Intent();
+        intent.putExtra( DeviceListActivity.EXTRAS_TARGET_NAME_PATTERNS, new String[]{ "M5Stack-(", null, "ESP32.*" } );
+        intent.putExtra( DeviceListActivity.EXTRAS_TARGET_SERVICE_UUIDS, new String[]{ "not-a-uuid" } );
+
+        DiscoveryFilter filter = DiscoveryFilter.fromIntent( intent );
+
+        assertFalse( filter.isEmpty() );
+        assertTrue( filter.matches( device( "00:11:22:33:44:07", "ESP32-07" ) ) );
+        assertFalse( filter.matches( device( "00:11:22:33:44:08", "M5Stack-(" ) ) );
+        assertTrue( new DiscoveryFilter( null, new String[]{ "[" }, new String[]{ "x" } ).isEmpty() );
+    }
+
+    @Test
+    public void setDutyCycle_clampsInsteadOfThrowing()
+    {
+        DiscoveryScheduler scheduler = new DiscoveryScheduler( null );
+
+        // window だけ既定の interval より長く指定された場合
+        scheduler.setDutyCycle( 40000, DiscoveryScheduler.DEFAULT_INTERVAL_MILLIS );
+        assertEquals( 12000, scheduler.getWindowMillis() );
+        assertEquals( DiscoveryScheduler.DEFAULT_INTERVAL_MILLIS, scheduler.getIntervalMillis() );
+
+        scheduler.setDutyCycle( 8000, 1000 );
+        assertEquals( 8000, scheduler.getWindowMillis() );
+        assertEquals( 8000, scheduler.getIntervalMillis() );
+
+        scheduler.setDutyCycle( -1, 0 );
+        assertEquals( DiscoveryScheduler.DEFAULT_WINDOW_MILLIS, scheduler.getWindowMillis() );
+        assertEquals( DiscoveryScheduler.DEFAULT_WINDOW_MILLIS, scheduler.getIntervalMillis() );
+    }
+
+    private static BluetoothDevice device( String address, String name )
+    {
+        BluetoothDevice device = ShadowBluetoothDevice.newInstance( address );
+        if( null != name ) {
+            shadowOf( device ).setName( name );
+        }
+        return device;
+    }
+}
@@ -0,0 +1,101 @@
+package jp.ac.jec.jz.bluetoothsample2020;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * テスト用の通信路（実機なしで BluetoothService を動かす）
+ * connect() は指定時間ブロックし、read() は close() されるまでブロックする。
+ * close() はどのスレッドから呼んでもよく、ブロック中の connect() / read() を IOException で抜けさせる。
+ */
+class FakeTransport implements BluetoothTransport
+{
+    private final long mConnectDelayMillis;
+    private final CountDownLatch mClosed = new CountDownLatch( 1 );
+
+    private final InputStream mInputStream = new InputStream()
+    {
+        @Override
+        public int read() throws IOException
+        {
+            awaitClosed();
+            throw new IOException( "closed" );
+        }
+
+        @Override
+        public int read( byte[] buffer, int offset, int length ) throws IOException
+        {
+            awaitClosed();
+            throw new IOException( "closed" );
+        }
+    };
+
+    private final OutputStream mOutputStream = new OutputStream()
+    {
+        @Override
+        public void write( int b ) throws IOException
+        {
+            write( new byte[]{ (byte)b }, 0, 1 );
+        }
+
+        @Override
+        public void write( byte[] buffer, int offset, int length ) throws IOException
+        {
+            if( isClosed() ) {
+                throw new IOException( "closed" );
+            }
+        }
+    };
+
+    FakeTransport( long connectDelayMillis )
+    {
+        mConnectDelayMillis = connectDelayMillis;
+    }
+
+    @Override
+    public void connect() throws IOException
+    {
+        try {
+            if( mClosed.await( mConnectDelayMillis, TimeUnit.MILLISECONDS ) ) {
+                throw new IOException( "closed during connect" );
+            }
+        } catch( InterruptedException e ) {
+            throw new IOException( e );
+        }
+    }
+
+    @Override
+    public InputStream getInputStream()
+    {
+        return mInputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream()
+    {
+        return mOutputStream;
+    }
+
+    @Override
+    public void close()
+    {
+        mClosed.countDown();
+    }
+
+    boolean isClosed()
+    {
+        return 0 == mClosed.getCount();
+    }
+
+    private void awaitClosed() throws IOException
+    {
+        try {
+            mClosed.await();
+        } catch( InterruptedException e ) {
+            throw new IOException( e );
+        }
+    }
+}
@@ -0,0 +1,488 @@
+package jp.ac.jec.jz.bluetoothsample2020;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Checksum;
+
+import static org.junit.Assert.*;
+
+/**
+ * FileTransfer のテスト
+ * 実機の代わりに LoopbackLink（RFCOMM のフレーム長以下に細切れにして届ける通信路）で送信側と受信側をつなぐ。
+ */
+public class FileTransferTest {
+
+    private static final int  FILE_SIZE       = 5 * 1024 * 1024 + 123;    // チャンク長で割り切れない大きさ
+    private static final int  MAX_FRAGMENT    = 990;
+    private static final long TIMEOUT_SECONDS = 30;
+    private static final int  HEADER_SIZE     = 22;
+    private static final int  HEADER_CRC_OFFSET = 18;
+
+    private File mDirectory;
+    private File mSource;
+    private File mDestination;
+    private File mResumeInfo;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        mDirectory = Files.createTempDirectory( "FileTransferTest" ).toFile();
+        mSource = new File( mDirectory, "source.bin" );
+        mDestination = new File( mDirectory, "destination.bin" );
+        mResumeInfo = new File( mDestination.getPath() + FileTransfer.RESUME_INFO_SUFFIX );
+        byte[] data = new byte[FILE_SIZE];
+        new Random( 1 ).nextBytes( data );
+        Files.write( mSource.toPath(), data );
+    }
+
+    @After
+    public void tearDown()
+    {
+        mSource.delete();
+        mDestination.delete();
+        mResumeInfo.delete();
+        mDirectory.delete();
+    }
+
+    @Test
+    public void crc32c_matchesCheckValue()
+    {
+        Checksum checksum = new Crc32c();
+        byte[] data = "123456789".getBytes( StandardCharsets.US_ASCII );
+        checksum.update( data, 0, data.length );
+        assertEquals( 0xE3069283L, checksum.getValue() );
+        assertEquals( 0xE3069283L, checksumOf( Crc32c.newChecksum(), data ) );
+    }
+
+    @Test
+    public void transfer_copiesWholeFile() throws Exception
+    {
+        Result result = transfer( -1, -1 );
+
+        assertNull( result.error );
+        assertEquals( 0, result.startOffset );
+        assertTrue( result.complete );
+        assertTrue( result.received );
+        assertFilesEqual();
+        assertFalse( mResumeInfo.exists() );
+    }
+
+    @Test
+    public void transfer_resumesFromAckedOffsetAfterConnectionLost() throws Exception
+    {
+        Result lost = transfer( FILE_SIZE * 2L / 5, -1 );
+        assertNotNull( lost.error );
+        assertFalse( lost.complete );
+        assertTrue( mResumeInfo.exists() );
+
+        Result resumed = transfer( -1, -1 );
+        assertNull( resumed.error );
+        assertTrue( resumed.startOffset > 0 );
+        assertEquals( 0, resumed.startOffset % FileTransfer.DEFAULT_CHUNK_SIZE );
+        assertTrue( resumed.complete );
+        assertFilesEqual();
+    }
+
+    @Test
+    public void transfer_retransmitsCorruptedChunk() throws Exception
+    {
+        // RESUME_REQUEST（ヘッダのみ）の後、11 個目の DATA フレームのペイロードを壊す
+        long corruptAt = HEADER_SIZE + 10L * ( HEADER_SIZE + FileTransfer.DEFAULT_CHUNK_SIZE ) + HEADER_SIZE + 100;
+        Result result = transfer( -1, corruptAt );
+
+        assertNull( result.error );
+        assertTrue( result.complete );
+        assertFilesEqual();
+    }
+
+    @Test
+    public void transfer_restartsFromZeroWhenSourceChanged() throws Exception
+    {
+        Result lost = transfer( FILE_SIZE / 2, -1 );
+        assertNotNull( lost.error );
+
+        // 同じ大きさの別のファイル
+        byte[] data = new byte[FILE_SIZE];
+        new Random( 3 ).nextBytes( data );
+        Files.write( mSource.toPath(), data );
+
+        Result result = transfer( -1, -1 );
+        assertNull( result.error );
+        assertEquals( 0, result.startOffset );
+        assertTrue( result.complete );
+        assertFilesEqual();
+    }
+
+    @Test
+    public void transfer_failsAndStartsOverWhenReceivedFileDiffers() throws Exception
+    {
+        Result lost = transfer( FILE_SIZE / 2, -1 );
+        assertNotNull( lost.error );
+
+        // 受信済みの部分を書き換える（再開情報は一致するので、そのまま続きから受け取る）
+        byte[] partial = Files.readAllBytes( mDestination.toPath() );
+        partial[0] ^= 0x5A;
+        Files.write( mDestination.toPath(), partial );
+
+        Result broken = transfer( -1, -1 );
+        assertTrue( broken.startOffset > 0 );
+        assertNotNull( broken.error );
+        assertFalse( broken.complete );
+        assertTrue( broken.receiverError.getMessage().contains( "checksum" ) );
+        assertEquals( 0, mDestination.length() );
+
+        Result result = transfer( -1, -1 );
+        assertNull( result.error );
+        assertEquals( 0, result.startOffset );
+        assertTrue( result.complete );
+        assertFilesEqual();
+    }
+
+    @Test
+    public void transfer_completesEmptyFileOnBothSides() throws Exception
+    {
+        Files.write( mSource.toPath(), new byte[0] );
+
+        Result result = transfer( -1, -1 );
+
+        assertNull( result.error );
+        assertEquals( 0, result.startOffset );
+        assertTrue( result.complete );
+        assertTrue( result.received );
+        assertEquals( 0, mDestination.length() );
+        assertFalse( mResumeInfo.exists() );
+    }
+
+    @Test
+    public void receiver_reportsErrorInsteadOfThrowingAndIgnoresLaterFrames() throws IOException
+    {
+        List<IOException> errors = new ArrayList<>();
+        int[] writes = { 0 };
+        FileTransfer.Receiver receiver = new FileTransfer.Receiver( mDestination, ( buffer, offset, length ) -> {
+            writes[0]++;
+            throw new IOException( "connection lost" );
+        }, new ProgressListener()
+        {
+            @Override
+            public void onError( IOException cause )
+            {
+                errors.add( cause );
+            }
+        } );
+
+        // RESUME_REQUEST への応答（RESUME）と、ABORT の送信が失敗する
+        byte[] request = frame( (byte)1, 4, 0, new byte[0] );
+        receiver.onReceive( request, request.length );
+        assertEquals( 1, errors.size() );
+        assertEquals( 2, writes[0] );
+
+        // 以降のフレームは捨てる
+        byte[] data = frame( (byte)3, 0, 0, new byte[4] );
+        receiver.onReceive( data, data.length );
+        assertEquals( 1, errors.size() );
+        assertEquals( 2, writes[0] );
+        assertEquals( 0, mDestination.length() );
+        receiver.close();
+    }
+
+    @Test
+    public void receiver_ignoresFramesAfterClose() throws IOException
+    {
+        int[] writes = { 0 };
+        FileTransfer.Receiver receiver = new FileTransfer.Receiver( mDestination, ( buffer, offset, length ) -> writes[0]++, new ProgressListener() );
+        receiver.close();
+        receiver.close();
+
+        byte[] request = frame( (byte)1, 4, 0, new byte[0] );
+        receiver.onReceive( request, request.length );
+        assertEquals( 0, writes[0] );
+    }
+
+    @Test
+    public void receiver_skipsFalseHeadersAfterLosingSync() throws IOException
+    {
+        byte[] first = { 1, 2, 3, 4 };
+        byte[] second = { 5, 6, 7, 8 };
+        byte[] whole = { 1, 2, 3, 4, 5, 6, 7, 8 };
+        List<String> replies = new ArrayList<>();
+        boolean[] complete = { false };
+        FileTransfer.Receiver receiver = new FileTransfer.Receiver( mDestination,
+                ( buffer, offset, length ) -> replies.add( describe( Arrays.copyOfRange( buffer, offset, offset + length ) ) ),
+                new ProgressListener()
+                {
+                    @Override
+                    public void onComplete( long totalBytes )
+                    {
+                        complete[0] = true;
+                    }
+                } );
+        feed( receiver, frame( (byte)1, whole.length, crcOf( whole ), new byte[0] ) );
+        feed( receiver, frame( (byte)3, 0, crcOf( first ), first ) );
+
+        // 前のフレームの途中から届いた（同期が外れた）データの中の、偽のヘッダ
+        // RESUME_REQUEST に見えるもの（書き込み先を消してはいけない）と、64 KB のペイロードを名乗る DATA に見えるもの
+        ByteBuffer garbage = ByteBuffer.allocate( 1 + HEADER_SIZE + HEADER_CRC_OFFSET );
+        garbage.put( (byte)0x11 );
+        garbage.put( (byte)0xB7 ).put( (byte)1 ).putInt( 0 ).putLong( 1 ).putInt( 0 ).putInt( 0 );
+        garbage.put( (byte)0xB7 ).put( (byte)3 ).putInt( 64 * 1024 ).putLong( 4 ).putInt( 0 );
+        feed( receiver, garbage.array() );
+        // 後ろの本物のフレームは、すぐに受け取れる
+        feed( receiver, frame( (byte)3, first.length, crcOf( second ), second ) );
+        receiver.close();
+
+        assertEquals( "2:0", replies.get( 0 ) );    // RESUME 0
+        assertEquals( "4:8", replies.get( replies.size() - 1 ) );    // ACK 8
+        assertTrue( complete[0] );
+        assertArrayEquals( whole, Files.readAllBytes( mDestination.toPath() ) );
+    }
+
+    @Test
+    public void receiver_ignoresResumeRequestDuringTransfer() throws IOException
+    {
+        byte[] first = { 1, 2, 3, 4 };
+        byte[] second = { 5, 6, 7, 8 };
+        byte[] whole = { 1, 2, 3, 4, 5, 6, 7, 8 };
+        List<String> replies = new ArrayList<>();
+        FileTransfer.Receiver receiver = new FileTransfer.Receiver( mDestination,
+                ( buffer, offset, length ) -> replies.add( describe( Arrays.copyOfRange( buffer, offset, offset + length ) ) ),
+                new ProgressListener() );
+        feed( receiver, frame( (byte)1, whole.length, crcOf( whole ), new byte[0] ) );
+        feed( receiver, frame( (byte)3, 0, crcOf( first ), first ) );
+        byte[] resumeInfo = Files.readAllBytes( mResumeInfo.toPath() );
+
+        // 別のファイルの問い合わせが来ても、書き込み先と再開情報はそのまま
+        feed( receiver, frame( (byte)1, 100, 0x12345678, new byte[0] ) );
+        assertEquals( 2, replies.size() );
+        assertEquals( first.length, mDestination.length() );
+        assertArrayEquals( resumeInfo, Files.readAllBytes( mResumeInfo.toPath() ) );
+
+        feed( receiver, frame( (byte)3, first.length, crcOf( second ), second ) );
+        receiver.close();
+        assertEquals( "4:8", replies.get( replies.size() - 1 ) );
+        assertArrayEquals( whole, Files.readAllBytes( mDestination.toPath() ) );
+    }
+
+    /// 補助 ////////////////////////////////////////////////////////////////////
+    private static class Result
+    {
+        volatile long startOffset = -1;
+        volatile boolean complete;     // 送信側の onComplete()
+        volatile boolean received;     // 受信側の onComplete()
+        volatile Exception error;
+        volatile IOException receiverError;
+    }
+
+    /**
+     * １回分の接続で転送する
+     * @param dropAfter  送信側がこのバイト数を送ったところで接続ロスト（-1 で無し）
+     * @param corruptAt  送信側からのこの位置のバイトを１回だけ壊す（-1 で無し）
+     */
+    private Result transfer( long dropAfter, long corruptAt ) throws Exception
+    {
+        Result result = new Result();
+        CountDownLatch received = new CountDownLatch( 1 );
+        LoopbackLink toReceiver = new LoopbackLink( dropAfter, corruptAt );
+        LoopbackLink toSender = new LoopbackLink( -1, -1 );
+
+        FileTransfer.Receiver receiver = new FileTransfer.Receiver( mDestination, toSender, new ProgressListener()
+        {
+            @Override
+            public void onComplete( long totalBytes )
+            {
+                result.received = true;
+                received.countDown();
+            }
+
+            @Override
+            public void onError( IOException cause )
+            {
+                result.receiverError = cause;
+                received.countDown();
+            }
+        } );
+        FileTransfer.Sender sender = new FileTransfer.Sender( mSource, toReceiver, new ProgressListener()
+        {
+            @Override
+            public void onStart( long startOffset, long totalBytes )
+            {
+                result.startOffset = startOffset;
+            }
+
+            @Override
+            public void onComplete( long totalBytes )
+            {
+                result.complete = true;
+            }
+        } );
+        toReceiver.start( receiver::onReceive, sender::abort );
+        toSender.start( sender::onReceive, sender::abort );
+
+        long startNanos = System.nanoTime();
+        try {
+            sender.run();
+            assertTrue( received.await( TIMEOUT_SECONDS, TimeUnit.SECONDS ) );
+        } catch( IOException e ) {
+            result.error = e;
+        } finally {
+            toReceiver.close();
+            toSender.close();
+            receiver.close();
+        }
+        double seconds = ( System.nanoTime() - startNanos ) / 1e9;
+        System.out.printf( "transfer from %d: %s in %.2f s%n", result.startOffset,
+                           null == result.error ? "complete" : result.error.getMessage(), seconds );
+        return result;
+    }
+
+    /**
+     * フレームの組み立て（FileTransfer と同じ形式）
+     */
+    private static byte[] frame( byte type, long offset, int crc, byte[] payload )
+    {
+        ByteBuffer frame = ByteBuffer.allocate( HEADER_SIZE + payload.length );
+        frame.put( (byte)0xB7 ).put( type ).putInt( payload.length ).putLong( offset ).putInt( crc );
+        Checksum checksum = Crc32c.newChecksum();
+        checksum.update( frame.array(), 0, HEADER_CRC_OFFSET );
+        frame.putInt( (int)checksum.getValue() ).put( payload );
+        return frame.array();
+    }
+
+    private static int crcOf( byte[] data )
+    {
+        return (int)checksumOf( Crc32c.newChecksum(), data );
+    }
+
+    private static void feed( FileTransfer.Receiver receiver, byte[] data )
+    {
+        receiver.onReceive( data, data.length );
+    }
+
+    /**
+     * 応答フレームの種類と offset（"4:8" = ACK 8 の形）
+     */
+    private static String describe( byte[] reply )
+    {
+        ByteBuffer frame = ByteBuffer.wrap( reply );
+        return frame.get( 1 ) + ":" + frame.getLong( 6 );
+    }
+
+    private void assertFilesEqual() throws IOException
+    {
+        assertTrue( Arrays.equals( Files.readAllBytes( mSource.toPath() ), Files.readAllBytes( mDestination.toPath() ) ) );
+    }
+
+    private static long checksumOf( Checksum checksum, byte[] data )
+    {
+        checksum.update( data, 0, data.length );
+        return checksum.getValue();
+    }
+
+    private static class ProgressListener implements FileTransfer.Listener
+    {
+        @Override
+        public void onStart( long startOffset, long totalBytes ) {}
+
+        @Override
+        public void onProgress( long transferredBytes, long totalBytes, double bytesPerSecond ) {}
+
+        @Override
+        public void onComplete( long totalBytes ) {}
+
+        @Override
+        public void onError( IOException cause ) {}
+    }
+
+    private interface Endpoint
+    {
+        void onReceive( byte[] buffer, int length );
+    }
+
+    /**
+     * 片方向の通信路の代わり
+     * 書き込まれたデータを別スレッドから、ランダムな長さ（MAX_FRAGMENT 以下）に区切って届ける。
+     */
+    private static class LoopbackLink implements FileTransfer.Link
+    {
+        private static final byte[] END = new byte[0];
+
+        private final BlockingQueue<byte[]> mQueue = new LinkedBlockingQueue<>();
+        private final AtomicLong mWritten = new AtomicLong();
+        private final long mDropAfter;
+        private final long mCorruptAt;
+        private final Random mRandom = new Random( 2 );
+        private volatile boolean mClosed = false;
+        private Thread mThread;
+
+        LoopbackLink( long dropAfter, long corruptAt )
+        {
+            mDropAfter = dropAfter;
+            mCorruptAt = corruptAt;
+        }
+
+        void start( Endpoint endpoint, Runnable onLost )
+        {
+            mThread = new Thread( () -> {
+                try {
+                    while( true ) {
+                        byte[] data = mQueue.take();
+                        if( END == data ) {
+                            break;
+                        }
+                        for( int position = 0; position < data.length; ) {
+                            int length = Math.min( data.length - position, 1 + mRandom.nextInt( MAX_FRAGMENT ) );
+                            endpoint.onReceive( Arrays.copyOfRange( data, position, position + length ), length );
+                            position += length;
+                        }
+                    }
+                } catch( InterruptedException e ) {
+                    // 終了
+                }
+                if( !mClosed ) {
+                    onLost.run();    // 接続ロスト（BluetoothService の STATE_CONNECTION_LOST 相当）
+                }
+            }, "LoopbackLink" );
+            mThread.start();
+        }
+
+        @Override
+        public void write( byte[] buffer, int offset, int length ) throws IOException
+        {
+            if( mClosed ) {
+                throw new IOException( "closed" );
+            }
+            long start = mWritten.getAndAdd( length );
+            if( 0 <= mDropAfter && start + length > mDropAfter ) {
+                mQueue.add( END );    // 途中までしか届かずに切れる
+                throw new IOException( "connection lost" );
+            }
+            byte[] data = Arrays.copyOfRange( buffer, offset, offset + length );
+            if( start <= mCorruptAt && mCorruptAt < start + length ) {
+                data[(int)( mCorruptAt - start )] ^= 0x5A;
+            }
+            mQueue.add( data );
+        }
+
+        void close() throws InterruptedException
+        {
+            mClosed = true;
+            mQueue.add( END );
+            mThread.join();
+        }
+    }
+}
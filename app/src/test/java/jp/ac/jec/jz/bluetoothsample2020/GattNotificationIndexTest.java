@@ -0,0 +1,127 @@
+package jp.ac.jec.jz.bluetoothsample2020;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Notification の振り分け表（GattNotificationIndex）のテスト
+ * サービス探索の結果の代わりに、ハンドル（getInstanceId()）を設定したキャラクタリスティックでサービスを組み立てる。
+ */
+@RunWith( RobolectricTestRunner.class )
+@Config( sdk = 28 )
+public class GattNotificationIndexTest {
+
+    private static final UUID UUID_BATTERY_LEVEL = UUID.fromString( "00002a19-0000-1000-8000-00805f9b34fb" );
+
+    private final BluetoothGattCharacteristic mNotify =
+            characteristic( GattTransport.UUID_NUS_TX, 12, BluetoothGattCharacteristic.PROPERTY_NOTIFY );
+    private final BluetoothGattCharacteristic mWrite =
+            characteristic( GattTransport.UUID_NUS_RX, 15, BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE );
+    private final BluetoothGattCharacteristic mIndicate =
+            characteristic( UUID_BATTERY_LEVEL, 40, BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_INDICATE );
+
+    @Test
+    public void contains_onlyNotifiableCharacteristicsFromDiscovery()
+    {
+        GattNotificationIndex index = new GattNotificationIndex( services() );
+
+        assertTrue( index.contains( mNotify ) );
+        assertTrue( index.contains( mIndicate ) );
+        assertFalse( index.contains( mWrite ) );
+        // 同じハンドルでも、別のサービス探索で得たものは含まない
+        assertFalse( index.contains( characteristic( GattTransport.UUID_NUS_TX, 12, BluetoothGattCharacteristic.PROPERTY_NOTIFY ) ) );
+        assertFalse( index.contains( characteristic( UUID_BATTERY_LEVEL, 41, BluetoothGattCharacteristic.PROPERTY_NOTIFY ) ) );
+    }
+
+    @Test
+    public void dispatch_deliversToListenerOfHandle()
+    {
+        GattNotificationIndex index = new GattNotificationIndex( services() );
+        List<String> received = new ArrayList<>();
+        index.setListener( mNotify, ( characteristic, value ) -> received.add( "notify " + value[0] ) );
+        index.setListener( mIndicate, ( characteristic, value ) -> received.add( "indicate " + value[0] ) );
+
+        mNotify.setValue( new byte[]{ 1 } );
+        assertTrue( index.dispatch( mNotify ) );
+        mIndicate.setValue( new byte[]{ 2 } );
+        assertTrue( index.dispatch( mIndicate ) );
+
+        assertEquals( 2, received.size() );
+        assertEquals( "notify 1", received.get( 0 ) );
+        assertEquals( "indicate 2", received.get( 1 ) );
+    }
+
+    @Test
+    public void dispatch_ignoresUnsubscribedAndUnknownHandles()
+    {
+        GattNotificationIndex index = new GattNotificationIndex( services() );
+        List<byte[]> received = new ArrayList<>();
+        index.setListener( mNotify, ( characteristic, value ) -> received.add( value ) );
+
+        assertFalse( index.dispatch( mIndicate ) );
+        assertFalse( index.dispatch( characteristic( UUID_BATTERY_LEVEL, 41, BluetoothGattCharacteristic.PROPERTY_NOTIFY ) ) );
+        assertFalse( index.dispatch( characteristic( UUID_BATTERY_LEVEL, -1, BluetoothGattCharacteristic.PROPERTY_NOTIFY ) ) );
+
+        // null で解除
+        index.setListener( mNotify, null );
+        assertFalse( index.dispatch( mNotify ) );
+        assertTrue( received.isEmpty() );
+    }
+
+    @Test
+    public void setListener_rejectsCharacteristicWithoutNotify()
+    {
+        GattNotificationIndex index = new GattNotificationIndex( services() );
+        try {
+            index.setListener( mWrite, ( characteristic, value ) -> {} );
+            fail( "write-only characteristic was accepted" );
+        } catch( IllegalArgumentException expected ) {
+            // OK
+        }
+    }
+
+    @Test
+    public void emptyDiscovery_containsNothing()
+    {
+        GattNotificationIndex index = new GattNotificationIndex( new ArrayList<>() );
+
+        assertFalse( index.contains( mNotify ) );
+        assertFalse( index.dispatch( mNotify ) );
+    }
+
+    /// 補助 ////////////////////////////////////////////////////////////////////
+    private List<BluetoothGattService> services()
+    {
+        BluetoothGattService uart = new BluetoothGattService( GattTransport.UUID_NUS_SERVICE, BluetoothGattService.SERVICE_TYPE_PRIMARY );
+        uart.addCharacteristic( mWrite );
+        uart.addCharacteristic( mNotify );
+        BluetoothGattService battery = new BluetoothGattService( UUID.fromString( "0000180f-0000-1000-8000-00805f9b34fb" ), BluetoothGattService.SERVICE_TYPE_PRIMARY );
+        battery.addCharacteristic( mIndicate );
+        List<BluetoothGattService> services = new ArrayList<>();
+        services.add( uart );
+        services.add( battery );
+        return services;
+    }
+
+    /**
+     * ハンドルを指定したキャラクタリスティック（サービス探索で得たものの代わり）
+     */
+    static BluetoothGattCharacteristic characteristic( UUID uuid, int handle, int properties )
+    {
+        BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic( uuid, properties, 0 );
+        ReflectionHelpers.setField( characteristic, "mInstance", handle );
+        return characteristic;
+    }
+}
@@ -0,0 +1,320 @@
+package jp.ac.jec.jz.bluetoothsample2020;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Looper;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * GATT 操作の直列化キュー（GattOperationQueue）のテスト
+ * 実機の代わりに、開始した操作を記録する FakeClient を使い、完了コールバックはテストから呼ぶ。
+ */
+@RunWith( RobolectricTestRunner.class )
+@Config( sdk = 28 )
+@LooperMode( LooperMode.Mode.PAUSED )
+public class GattOperationQueueTest {
+
+    private static final int GATT_ERROR = 133;
+
+    /**
+     * 開始した操作の記録
+     * rejects が残っている間は、スタックが受け付けなかった（false）ことにする。
+     */
+    private static class FakeClient implements GattOperationQueue.Client
+    {
+        final List<String> calls = new ArrayList<>();
+        int rejects = 0;
+
+        private boolean start( String call )
+        {
+            if( 0 < rejects ) {
+                rejects--;
+                return false;
+            }
+            calls.add( call );
+            return true;
+        }
+
+        @Override
+        public boolean discoverServices()
+        {
+            return start( "discoverServices" );
+        }
+
+        @Override
+        public boolean requestMtu( int mtu )
+        {
+            return start( "requestMtu " + mtu );
+        }
+
+        @Override
+        public boolean readCharacteristic( BluetoothGattCharacteristic characteristic )
+        {
+            return start( "read " + characteristic.getUuid() );
+        }
+
+        @Override
+        public boolean writeCharacteristic( BluetoothGattCharacteristic characteristic )
+        {
+            return start( "write " + characteristic.getUuid() );
+        }
+
+        @Override
+        public boolean writeDescriptor( BluetoothGattDescriptor descriptor )
+        {
+            return start( "writeDescriptor " + descriptor.getUuid() );
+        }
+    }
+
+    @Test
+    public void operations_runOneAtATimeInOrder() throws Exception
+    {
+        FakeClient client = new FakeClient();
+        GattOperationQueue queue = new GattOperationQueue( client );
+        BluetoothGattCharacteristic characteristic = characteristic( 1 );
+
+        CompletableFuture<Void> discover = queue.discoverServices();
+        CompletableFuture<Integer> mtu = queue.requestMtu( 247 );
+        CompletableFuture<byte[]> read = queue.read( characteristic );
+        assertEquals( listOf( "discoverServices" ), client.calls );
+        assertEquals( 3, queue.size() );
+
+        // 違う種類のコールバックでは進まない
+        queue.onMtuChanged( 247, BluetoothGatt.GATT_SUCCESS );
+        assertFalse( mtu.isDone() );
+        assertEquals( 1, client.calls.size() );
+
+        queue.onServicesDiscovered( BluetoothGatt.GATT_SUCCESS );
+        assertTrue( discover.isDone() );
+        assertEquals( listOf( "discoverServices", "requestMtu 247" ), client.calls );
+
+        queue.onMtuChanged( 247, BluetoothGatt.GATT_SUCCESS );
+        assertEquals( 247, (int)mtu.get() );
+
+        characteristic.setValue( new byte[]{ 1, 2, 3 } );
+        queue.onCharacteristicRead( characteristic, BluetoothGatt.GATT_SUCCESS );
+        assertArrayEquals( new byte[]{ 1, 2, 3 }, read.get() );
+        assertEquals( 0, queue.size() );
+    }
+
+    @Test
+    public void failureStatus_failsOperationWithIOException()
+    {
+        GattOperationQueue queue = new GattOperationQueue( new FakeClient() );
+        BluetoothGattDescriptor descriptor = new BluetoothGattDescriptor( GattTransport.UUID_CCCD, BluetoothGattDescriptor.PERMISSION_WRITE );
+
+        CompletableFuture<Void> write = queue.writeDescriptor( descriptor, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE );
+        queue.onDescriptorWrite( descriptor, GATT_ERROR );
+
+        assertTrue( causeOf( write ) instanceof IOException );
+        assertArrayEquals( BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE, descriptor.getValue() );
+    }
+
+    @Test
+    public void busyStack_repostsUntilAccepted()
+    {
+        FakeClient client = new FakeClient();
+        client.rejects = 3;
+        GattOperationQueue queue = new GattOperationQueue( client );
+
+        CompletableFuture<Void> discover = queue.discoverServices();
+        assertTrue( client.calls.isEmpty() );
+
+        // BUSY_RETRY_DELAY_MILLIS ごとに投げ直す
+        idleFor( GattOperationQueue.BUSY_RETRY_DELAY_MILLIS * 2 );
+        assertTrue( client.calls.isEmpty() );
+        idleFor( GattOperationQueue.BUSY_RETRY_DELAY_MILLIS );
+        assertEquals( listOf( "discoverServices" ), client.calls );
+
+        queue.onServicesDiscovered( BluetoothGatt.GATT_SUCCESS );
+        assertTrue( discover.isDone() );
+        assertFalse( discover.isCompletedExceptionally() );
+    }
+
+    @Test
+    public void busyStack_failsAfterMaxBusyRetriesAndStartsNext()
+    {
+        FakeClient client = new FakeClient();
+        client.rejects = GattOperationQueue.MAX_BUSY_RETRIES + 1;
+        GattOperationQueue queue = new GattOperationQueue( client );
+
+        CompletableFuture<Void> discover = queue.discoverServices();
+        queue.requestMtu( 247 );
+        idleFor( GattOperationQueue.BUSY_RETRY_DELAY_MILLIS * GattOperationQueue.MAX_BUSY_RETRIES );
+
+        assertTrue( causeOf( discover ) instanceof IOException );
+        assertEquals( listOf( "requestMtu 247" ), client.calls );
+    }
+
+    @Test
+    public void timeout_retriesThenFails()
+    {
+        FakeClient client = new FakeClient();
+        GattOperationQueue queue = new GattOperationQueue( client );
+
+        CompletableFuture<Void> discover = queue.discoverServices();
+        for( int retry = 1; retry <= GattOperationQueue.DEFAULT_RETRIES; retry++ ) {
+            idleFor( GattOperationQueue.DEFAULT_TIMEOUT_MILLIS );
+            assertEquals( 1 + retry, client.calls.size() );
+            assertFalse( discover.isDone() );
+        }
+        idleFor( GattOperationQueue.DEFAULT_TIMEOUT_MILLIS );
+
+        assertTrue( causeOf( discover ) instanceof TimeoutException );
+        assertEquals( 1 + GattOperationQueue.DEFAULT_RETRIES, client.calls.size() );
+        assertEquals( 0, queue.size() );
+    }
+
+    @Test
+    public void timeout_doesNotRetryCharacteristicWrite()
+    {
+        FakeClient client = new FakeClient();
+        GattOperationQueue queue = new GattOperationQueue( client );
+        BluetoothGattCharacteristic characteristic = characteristic( 1 );
+
+        CompletableFuture<Void> write = queue.write( characteristic, new byte[]{ 1 }, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE );
+        idleFor( GattOperationQueue.DEFAULT_TIMEOUT_MILLIS );
+
+        assertTrue( causeOf( write ) instanceof TimeoutException );
+        assertEquals( 1, client.calls.size() );
+    }
+
+    @Test
+    public void lateCallbackOfTimedOutAttempt_completesRetriedOperationOnly() throws Exception
+    {
+        FakeClient client = new FakeClient();
+        GattOperationQueue queue = new GattOperationQueue( client );
+
+        // １回目がタイムアウトして再試行中に、１回目のコールバックが届く
+        CompletableFuture<Void> first = queue.discoverServices();
+        idleFor( GattOperationQueue.DEFAULT_TIMEOUT_MILLIS );
+        assertEquals( 2, client.calls.size() );
+        queue.onServicesDiscovered( BluetoothGatt.GATT_SUCCESS );
+        assertTrue( first.isDone() );
+        assertFalse( first.isCompletedExceptionally() );
+
+        // 再試行のコールバックは、次のサービス探索を完了させない
+        CompletableFuture<Void> second = queue.discoverServices();
+        assertEquals( 3, client.calls.size() );
+        queue.onServicesDiscovered( BluetoothGatt.GATT_SUCCESS );
+        assertFalse( second.isDone() );
+        queue.onServicesDiscovered( BluetoothGatt.GATT_SUCCESS );
+        assertTrue( second.isDone() );
+    }
+
+    @Test
+    public void lateReadCallback_isNotTakenForRetryOfSameCharacteristic() throws Exception
+    {
+        FakeClient client = new FakeClient();
+        GattOperationQueue queue = new GattOperationQueue( client );
+        BluetoothGattCharacteristic characteristic = characteristic( 1 );
+
+        // 全ての試行がタイムアウトして失敗した読み込み（前の試行は STALE_CALLBACK_MILLIS を過ぎて忘れている）
+        CompletableFuture<byte[]> first = queue.read( characteristic );
+        idleFor( GattOperationQueue.DEFAULT_TIMEOUT_MILLIS * ( GattOperationQueue.DEFAULT_RETRIES + 1 ) );
+        assertTrue( causeOf( first ) instanceof TimeoutException );
+
+        // 最後の試行の遅れたコールバックは、同じキャラクタリスティックの次の読み込みを完了させない
+        CompletableFuture<byte[]> second = queue.read( characteristic );
+        characteristic.setValue( new byte[]{ 1 } );
+        queue.onCharacteristicRead( characteristic, BluetoothGatt.GATT_SUCCESS );
+        assertFalse( second.isDone() );
+
+        characteristic.setValue( new byte[]{ 2 } );
+        queue.onCharacteristicRead( characteristic, BluetoothGatt.GATT_SUCCESS );
+        assertArrayEquals( new byte[]{ 2 }, second.get() );
+    }
+
+    @Test
+    public void staleAttempt_isForgottenAfterStaleCallbackMillis() throws Exception
+    {
+        FakeClient client = new FakeClient();
+        GattOperationQueue queue = new GattOperationQueue( client );
+        BluetoothGattCharacteristic characteristic = characteristic( 1 );
+
+        // コールバックが来ないまま失敗した書き込み
+        CompletableFuture<Void> lost = queue.write( characteristic, new byte[]{ 1 }, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE );
+        idleFor( GattOperationQueue.DEFAULT_TIMEOUT_MILLIS );
+        assertTrue( lost.isCompletedExceptionally() );
+
+        // 待つ時間を過ぎた後の書き込みは、自分のコールバックで完了する
+        idleFor( GattOperationQueue.STALE_CALLBACK_MILLIS );
+        CompletableFuture<Void> next = queue.write( characteristic, new byte[]{ 2 }, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE );
+        queue.onCharacteristicWrite( characteristic, BluetoothGatt.GATT_SUCCESS );
+        assertTrue( next.isDone() );
+        assertFalse( next.isCompletedExceptionally() );
+    }
+
+    @Test
+    public void close_failsCurrentPendingAndLaterOperations()
+    {
+        FakeClient client = new FakeClient();
+        GattOperationQueue queue = new GattOperationQueue( client );
+        IOException cause = new IOException( "GATT connection closed" );
+
+        CompletableFuture<Void> current = queue.discoverServices();
+        CompletableFuture<Integer> pending = queue.requestMtu( 247 );
+        queue.close( cause );
+
+        assertSame( cause, causeOf( current ) );
+        assertSame( cause, causeOf( pending ) );
+        assertSame( cause, causeOf( queue.discoverServices() ) );
+        assertEquals( 0, queue.size() );
+
+        // 閉じた後のコールバックやタイムアウトでは何も始めない
+        queue.onServicesDiscovered( BluetoothGatt.GATT_SUCCESS );
+        idleFor( GattOperationQueue.DEFAULT_TIMEOUT_MILLIS * 2 );
+        assertEquals( listOf( "discoverServices" ), client.calls );
+    }
+
+    /// 補助 ////////////////////////////////////////////////////////////////////
+    private static BluetoothGattCharacteristic characteristic( int handle )
+    {
+        return GattNotificationIndexTest.characteristic( UUID.randomUUID(), handle, BluetoothGattCharacteristic.PROPERTY_READ );
+    }
+
+    private static void idleFor( long millis )
+    {
+        shadowOf( Looper.getMainLooper() ).idleFor( millis, TimeUnit.MILLISECONDS );
+    }
+
+    private static Throwable causeOf( CompletableFuture<?> future )
+    {
+        assertTrue( future.isCompletedExceptionally() );
+        try {
+            future.get();
+        } catch( ExecutionException e ) {
+            return e.getCause();
+        } catch( InterruptedException e ) {
+            throw new AssertionError( e );
+        }
+        throw new AssertionError( "not failed" );
+    }
+
+    private static List<String> listOf( String... values )
+    {
+        List<String> list = new ArrayList<>();
+        for( String value : values ) {
+            list.add( value );
+        }
+        return list;
+    }
+}
@@ -0,0 +1,138 @@
+package jp.ac.jec.jz.bluetoothsample2020;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowBluetoothDevice;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+/**
+ * GATT の通信路（GattTransport）のテスト
+ * 実機には接続せず、GATT のコールバックから呼ばれる部分（サービス探索の完了・Notification の受信）を直接呼ぶ。
+ */
+@RunWith( RobolectricTestRunner.class )
+@Config( sdk = 28 )
+public class GattTransportTest {
+
+    private final BluetoothGattCharacteristic mNotify =
+            GattNotificationIndexTest.characteristic( GattTransport.UUID_NUS_TX, 12, BluetoothGattCharacteristic.PROPERTY_NOTIFY );
+    private final BluetoothGattCharacteristic mWrite =
+            GattNotificationIndexTest.characteristic( GattTransport.UUID_NUS_RX, 15, BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE );
+
+    private GattTransport mTransport;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        BluetoothDevice device = ShadowBluetoothDevice.newInstance( "00:11:22:33:44:55" );
+        mTransport = (GattTransport)MainActivity.BluetoothService.gatt( RuntimeEnvironment.application ).create( device );
+    }
+
+    @Test
+    public void subscribe_failsBeforeServiceDiscovery()
+    {
+        assertTrue( causeOf( mTransport.subscribe( mNotify, ( characteristic, value ) -> {} ) ) instanceof IOException );
+    }
+
+    @Test
+    public void subscribe_failsWithIOExceptionForCharacteristicWithoutNotify()
+    {
+        mTransport.onServicesDiscovered( services(), BluetoothGatt.GATT_SUCCESS );
+
+        // IllegalArgumentException を投げずに、失敗した future を返す
+        Throwable cause = causeOf( mTransport.subscribe( mWrite, ( characteristic, value ) -> {} ) );
+        assertTrue( cause instanceof IOException );
+        assertTrue( cause.getMessage().contains( GattTransport.UUID_NUS_RX.toString() ) );
+    }
+
+    @Test
+    public void subscribe_failsWithIOExceptionForCharacteristicFromOtherDiscovery()
+    {
+        mTransport.onServicesDiscovered( services(), BluetoothGatt.GATT_SUCCESS );
+
+        // 同じ UUID・ハンドルでも、別のサービス探索で得たもの
+        BluetoothGattCharacteristic stale =
+                GattNotificationIndexTest.characteristic( GattTransport.UUID_NUS_TX, 12, BluetoothGattCharacteristic.PROPERTY_NOTIFY );
+        assertTrue( causeOf( mTransport.subscribe( stale, ( characteristic, value ) -> {} ) ) instanceof IOException );
+    }
+
+    @Test
+    public void subscribe_failsAfterFailedServiceDiscovery()
+    {
+        mTransport.onServicesDiscovered( services(), 129 );
+
+        assertTrue( causeOf( mTransport.subscribe( mNotify, ( characteristic, value ) -> {} ) ) instanceof IOException );
+    }
+
+    @Test
+    public void receive_keepsOrderUpToQueueSize() throws IOException
+    {
+        for( int i = 0; i < GattTransport.RECEIVE_QUEUE_SIZE; i++ ) {
+            mTransport.receive( new byte[]{ (byte)i } );
+        }
+
+        InputStream input = mTransport.getInputStream();
+        for( int i = 0; i < GattTransport.RECEIVE_QUEUE_SIZE; i++ ) {
+            assertEquals( i & 0xFF, input.read() );
+        }
+    }
+
+    @Test
+    public void receive_overflowClosesStreamInsteadOfDropping()
+    {
+        for( int i = 0; i <= GattTransport.RECEIVE_QUEUE_SIZE; i++ ) {
+            mTransport.receive( new byte[]{ (byte)i } );
+        }
+        // 溢れた後の Notification も受け取らない
+        mTransport.receive( new byte[]{ 1 } );
+
+        // 穴の空いたデータは返さずに、接続ロスト（IOException）になる
+        InputStream input = mTransport.getInputStream();
+        try {
+            input.read();
+            fail( "stream continued after a dropped notification" );
+        } catch( IOException expected ) {
+            // OK
+        }
+    }
+
+    /// 補助 ////////////////////////////////////////////////////////////////////
+    private List<BluetoothGattService> services()
+    {
+        BluetoothGattService uart = new BluetoothGattService( GattTransport.UUID_NUS_SERVICE, BluetoothGattService.SERVICE_TYPE_PRIMARY );
+        uart.addCharacteristic( mWrite );
+        uart.addCharacteristic( mNotify );
+        List<BluetoothGattService> services = new ArrayList<>();
+        services.add( uart );
+        return services;
+    }
+
+    private static Throwable causeOf( CompletableFuture<?> future )
+    {
+        assertTrue( future.isCompletedExceptionally() );
+        try {
+            future.get();
+        } catch( ExecutionException e ) {
+            return e.getCause();
+        } catch( InterruptedException e ) {
+            throw new AssertionError( e );
+        }
+        throw new AssertionError( "not failed" );
+    }
+}
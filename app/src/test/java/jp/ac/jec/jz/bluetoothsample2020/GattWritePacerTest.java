@@ -0,0 +1,228 @@
+package jp.ac.jec.jz.bluetoothsample2020;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Looper;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * GATT の送信のペース配分（GattWritePacer）のテスト
+ * 実機の代わりに、送ったパケットと接続優先度の要求を記録する FakeWriter を使う。
+ */
+@RunWith( RobolectricTestRunner.class )
+@Config( sdk = 28 )
+@LooperMode( LooperMode.Mode.PAUSED )
+public class GattWritePacerTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    /**
+     * 送ったパケットと接続優先度の要求の記録
+     * autoComplete が true なら、送った時点で完了にする。
+     */
+    private static class FakeWriter implements GattWritePacer.PacketWriter
+    {
+        final List<byte[]> packets = new CopyOnWriteArrayList<>();
+        final List<CompletableFuture<Void>> futures = new CopyOnWriteArrayList<>();
+        final List<Integer> priorities = new CopyOnWriteArrayList<>();
+        final boolean autoComplete;
+
+        FakeWriter( boolean autoComplete )
+        {
+            this.autoComplete = autoComplete;
+        }
+
+        @Override
+        public CompletableFuture<Void> writePacket( byte[] packet )
+        {
+            packets.add( packet );
+            CompletableFuture<Void> future = autoComplete ? CompletableFuture.completedFuture( null ) : new CompletableFuture<>();
+            futures.add( future );
+            return future;
+        }
+
+        @Override
+        public void requestConnectionPriority( int priority )
+        {
+            priorities.add( priority );
+        }
+    }
+
+    @Test
+    public void negotiateMtu_fallsBackToDefaultWhenRequestFails()
+    {
+        GattWritePacer pacer = new GattWritePacer( new FakeWriter( true ) );
+        CompletableFuture<Integer> failed = new CompletableFuture<>();
+        failed.completeExceptionally( new IOException( "GATT operation 2 failed: status 6" ) );
+
+        assertEquals( GattWritePacer.DEFAULT_MTU, pacer.negotiateMtu( failed ) );
+        assertEquals( GattWritePacer.DEFAULT_MTU - GattWritePacer.ATT_HEADER_SIZE, pacer.getPayloadSize() );
+
+        // 範囲外の値も既定の MTU
+        assertEquals( GattWritePacer.DEFAULT_MTU, pacer.negotiateMtu( CompletableFuture.completedFuture( 10 ) ) );
+        assertEquals( 247, pacer.negotiateMtu( CompletableFuture.completedFuture( 247 ) ) );
+        assertEquals( 244, pacer.getPayloadSize() );
+    }
+
+    @Test
+    public void write_splitsIntoMtuSizedPackets() throws IOException
+    {
+        FakeWriter writer = new FakeWriter( true );
+        GattWritePacer pacer = new GattWritePacer( writer );
+        pacer.negotiateMtu( CompletableFuture.completedFuture( 103 ) );    // １パケット 100 バイト
+        byte[] data = new byte[250];
+        for( int i = 0; i < data.length; i++ ) {
+            data[i] = (byte)i;
+        }
+
+        pacer.write( data, 0, data.length );
+
+        assertEquals( 3, writer.packets.size() );
+        assertEquals( 100, writer.packets.get( 0 ).length );
+        assertEquals( 100, writer.packets.get( 1 ).length );
+        assertEquals( 50, writer.packets.get( 2 ).length );
+        byte[] joined = new byte[250];
+        int position = 0;
+        for( byte[] packet : writer.packets ) {
+            System.arraycopy( packet, 0, joined, position, packet.length );
+            position += packet.length;
+        }
+        assertArrayEquals( data, joined );
+    }
+
+    @Test
+    public void write_keepsAtMostMaxPendingWritesInFlight() throws Exception
+    {
+        FakeWriter writer = new FakeWriter( false );
+        GattWritePacer pacer = new GattWritePacer( writer );
+        int packets = GattWritePacer.MAX_PENDING_WRITES * 3;
+        byte[] data = new byte[pacer.getPayloadSize() * packets];
+        AtomicReference<Exception> error = new AtomicReference<>();
+        Thread sender = new Thread( () -> {
+            try {
+                pacer.write( data, 0, data.length );
+            } catch( IOException e ) {
+                error.set( e );
+            }
+        } );
+        sender.start();
+
+        // 完了が来るまでは MAX_PENDING_WRITES 個で止まる
+        assertTrue( awaitPackets( writer, GattWritePacer.MAX_PENDING_WRITES ) );
+        Thread.sleep( 50 );
+        assertEquals( GattWritePacer.MAX_PENDING_WRITES, writer.packets.size() );
+
+        // １つ完了するごとに１つ進む
+        for( int completed = 0; completed < packets; completed++ ) {
+            assertTrue( awaitPackets( writer, Math.min( packets, completed + GattWritePacer.MAX_PENDING_WRITES ) ) );
+            int outstanding = 0;
+            for( CompletableFuture<Void> future : writer.futures ) {
+                outstanding += future.isDone() ? 0 : 1;
+            }
+            assertTrue( outstanding <= GattWritePacer.MAX_PENDING_WRITES );
+            writer.futures.get( completed ).complete( null );
+        }
+        sender.join( TIMEOUT_MILLIS );
+        assertFalse( sender.isAlive() );
+        assertNull( error.get() );
+        assertEquals( packets, writer.packets.size() );
+    }
+
+    @Test
+    public void write_failsWhenPacketFails() throws Exception
+    {
+        FakeWriter writer = new FakeWriter( false );
+        GattWritePacer pacer = new GattWritePacer( writer );
+        byte[] data = new byte[pacer.getPayloadSize() * 2];
+        AtomicReference<Exception> error = new AtomicReference<>();
+        Thread sender = new Thread( () -> {
+            try {
+                pacer.write( data, 0, data.length );
+            } catch( IOException e ) {
+                error.set( e );
+            }
+        } );
+        sender.start();
+
+        assertTrue( awaitPackets( writer, 2 ) );
+        writer.futures.get( 0 ).completeExceptionally( new IOException( "GATT operation 4 failed: status 133" ) );
+        sender.join( TIMEOUT_MILLIS );
+        assertNotNull( error.get() );
+        // 積んだままの続きのパケットは取り消す（キューから送られない）
+        assertTrue( writer.futures.get( 1 ).isCancelled() );
+
+        // close() 後は送らない
+        pacer.close();
+        try {
+            pacer.write( data, 0, 1 );
+            fail( "write after close" );
+        } catch( IOException expected ) {
+            // OK
+        }
+    }
+
+    @Test
+    public void write_raisesPriorityForBulkAndRestoresAfterIdle() throws IOException
+    {
+        FakeWriter writer = new FakeWriter( true );
+        GattWritePacer pacer = new GattWritePacer( writer );
+        byte[] data = new byte[pacer.getPayloadSize() * 4];
+
+        // １パケットに収まる送信では優先度を変えない
+        pacer.write( data, 0, pacer.getPayloadSize() );
+        assertTrue( writer.priorities.isEmpty() );
+
+        // 複数パケットの送信で HIGH。連続した送信の間は要求し直さない
+        pacer.write( data, 0, data.length );
+        pacer.write( data, 0, data.length );
+        assertEquals( listOf( BluetoothGatt.CONNECTION_PRIORITY_HIGH ), writer.priorities );
+
+        // 送信が BULK_IDLE_MILLIS 途切れたら BALANCED
+        shadowOf( Looper.getMainLooper() ).idleFor( GattWritePacer.BULK_IDLE_MILLIS - 1, TimeUnit.MILLISECONDS );
+        assertEquals( 1, writer.priorities.size() );
+        shadowOf( Looper.getMainLooper() ).idleFor( 1, TimeUnit.MILLISECONDS );
+        assertEquals( listOf( BluetoothGatt.CONNECTION_PRIORITY_HIGH, BluetoothGatt.CONNECTION_PRIORITY_BALANCED ), writer.priorities );
+
+        // 切断後は戻しの要求も出さない
+        pacer.write( data, 0, data.length );
+        pacer.close();
+        shadowOf( Looper.getMainLooper() ).idleFor( GattWritePacer.BULK_IDLE_MILLIS, TimeUnit.MILLISECONDS );
+        assertEquals( 3, writer.priorities.size() );
+    }
+
+    private static boolean awaitPackets( FakeWriter writer, int count ) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while( writer.packets.size() < count ) {
+            if( System.currentTimeMillis() > deadline ) {
+                return false;
+            }
+            Thread.sleep( 1 );
+        }
+        return true;
+    }
+
+    private static List<Integer> listOf( Integer... values )
+    {
+        List<Integer> list = new ArrayList<>();
+        for( Integer value : values ) {
+            list.add( value );
+        }
+        return list;
+    }
+}
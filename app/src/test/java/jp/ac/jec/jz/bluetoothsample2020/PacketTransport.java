@@ -0,0 +1,89 @@
+package jp.ac.jec.jz.bluetoothsample2020;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * テスト用の通信路（受信データを一定長のパケットで返す）
+ * RFCOMM のフレーム長や L2CAP CoC の SDU 長を packetSize で模擬する。
+ * totalBytes を返し終わったら、close() されるまで read() はブロックする。
+ */
+class PacketTransport implements BluetoothTransport
+{
+    private final int mPacketSize;
+    private long mRemaining;
+    private final CountDownLatch mClosed = new CountDownLatch( 1 );
+
+    private final InputStream mInputStream = new InputStream()
+    {
+        @Override
+        public int read() throws IOException
+        {
+            byte[] one = new byte[1];
+            return ( 0 < read( one, 0, 1 ) ) ? ( one[0] & 0xFF ) : -1;
+        }
+
+        @Override
+        public int read( byte[] buffer, int offset, int length ) throws IOException
+        {
+            if( 0 == mRemaining ) {
+                try {
+                    mClosed.await();
+                } catch( InterruptedException e ) {
+                    throw new IOException( e );
+                }
+            }
+            if( 0 == mClosed.getCount() ) {
+                throw new IOException( "closed" );
+            }
+            int size = (int)Math.min( Math.min( length, mPacketSize ), mRemaining );
+            mRemaining -= size;
+            return size;
+        }
+    };
+
+    private final OutputStream mOutputStream = new OutputStream()
+    {
+        @Override
+        public void write( int b )
+        {
+        }
+    };
+
+    PacketTransport( long totalBytes, int packetSize )
+    {
+        mRemaining = totalBytes;
+        mPacketSize = packetSize;
+    }
+
+    @Override
+    public void connect()
+    {
+    }
+
+    @Override
+    public InputStream getInputStream()
+    {
+        return mInputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream()
+    {
+        return mOutputStream;
+    }
+
+    @Override
+    public int getReceiveBufferSize()
+    {
+        return Math.max( DEFAULT_RECEIVE_BUFFER_SIZE, mPacketSize );
+    }
+
+    @Override
+    public void close()
+    {
+        mClosed.countDown();
+    }
+}
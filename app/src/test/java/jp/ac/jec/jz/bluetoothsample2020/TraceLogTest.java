@@ -0,0 +1,48 @@
+package jp.ac.jec.jz.bluetoothsample2020;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * TraceLog のリングバッファと整形のテスト
+ */
+public class TraceLogTest {
+
+    @Test
+    public void dump_keepsOnlyLatestRecordsAfterWrapAround()
+    {
+        int total = TraceLog.CAPACITY + 100;
+        for( int i = 0; i < total; i++ ) {
+            TraceLog.trace( TraceLog.EVENT_HANDLER_MESSAGE, i, 0, 0 );
+        }
+
+        String[] lines = dump().split( "\n" );
+        assertEquals( TraceLog.CAPACITY, lines.length );
+        assertTrue( lines[0].endsWith( "HANDLER_MESSAGE 100 0 0" ) );
+        assertTrue( lines[lines.length - 1].endsWith( "HANDLER_MESSAGE " + ( total - 1 ) + " 0 0" ) );
+    }
+
+    @Test
+    public void dump_formatsServiceUuid()
+    {
+        UUID uuid = UUID.fromString( "00001812-0000-1000-8000-00805f9b34fb" );
+        TraceLog.trace( TraceLog.EVENT_SERVICE_UUID, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits() );
+
+        String[] lines = dump().split( "\n" );
+        assertTrue( lines[lines.length - 1].endsWith( "SERVICE_UUID " + uuid ) );
+    }
+
+    private static String dump()
+    {
+        StringWriter stringWriter = new StringWriter();
+        PrintWriter writer = new PrintWriter( stringWriter );
+        TraceLog.dump( writer, "" );
+        writer.flush();
+        return stringWriter.toString();
+    }
+}
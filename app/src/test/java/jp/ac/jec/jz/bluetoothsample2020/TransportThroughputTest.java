@@ -0,0 +1,102 @@
+package jp.ac.jec.jz.bluetoothsample2020;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+import org.robolectric.shadows.ShadowBluetoothDevice;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jp.ac.jec.jz.bluetoothsample2020.MainActivity.BluetoothService;
+
+import static org.junit.Assert.*;
+
+/**
+ * 通信路ごとの受信スループットの比較
+ * 実機の代わりに PacketTransport を使い、RFCOMM 相当（小さいフレーム）と L2CAP CoC 相当（大きい SDU）で
+ * BluetoothService の受信経路を通したときの read() 回数と転送速度を比べる。
+ */
+@RunWith( RobolectricTestRunner.class )
+@Config( sdk = 28 )
+@LooperMode( LooperMode.Mode.PAUSED )
+public class TransportThroughputTest {
+
+    private static final long TOTAL_BYTES       = 32L * 1024 * 1024;
+    private static final int  RFCOMM_FRAME_SIZE = 990;      // Android の RFCOMM の最大フレーム長の目安
+    private static final int  L2CAP_SDU_SIZE    = 32768;    // L2CAP CoC の SDU（相手側の MTU 次第）
+    private static final long TIMEOUT_MILLIS    = 30000;
+
+    private HandlerThread mHandlerThread;
+    private Handler mHandler;
+
+    @Before
+    public void setUp()
+    {
+        mHandlerThread = new HandlerThread( "ThroughputHandler" );
+        mHandlerThread.start();
+        mHandler = new Handler( mHandlerThread.getLooper() );
+    }
+
+    @After
+    public void tearDown()
+    {
+        mHandlerThread.quit();
+    }
+
+    @Test
+    public void l2capStandIn_needsFewerReadsThanRfcommStandIn() throws Exception
+    {
+        long rfcommReads = receive( "00:11:22:33:55:01", RFCOMM_FRAME_SIZE, "RFCOMM" );
+        long l2capReads  = receive( "00:11:22:33:55:02", L2CAP_SDU_SIZE, "L2CAP" );
+
+        assertTrue( "rfcomm reads " + rfcommReads + ", l2cap reads " + l2capReads,
+                    l2capReads * 10 < rfcommReads );
+    }
+
+    /**
+     * TOTAL_BYTES を受信し終わるまでの時間を計って出力する
+     * @return read() の回数
+     */
+    private long receive( String address, int packetSize, String label ) throws Exception
+    {
+        BluetoothDevice device = ShadowBluetoothDevice.newInstance( address );
+        BluetoothService service = new BluetoothService( RuntimeEnvironment.application, mHandler, device,
+                                                         d -> new PacketTransport( TOTAL_BYTES, packetSize ) );
+        AtomicLong received = new AtomicLong();
+        CountDownLatch done = new CountDownLatch( 1 );
+        service.setOnReceiveListener( ( buffer, length ) -> {
+            if( TOTAL_BYTES <= received.addAndGet( length ) ) {
+                done.countDown();
+            }
+        } );
+
+        long readsBefore = readCalls( service );
+        long start = System.nanoTime();
+        service.connect();
+        assertTrue( label + " did not finish", done.await( TIMEOUT_MILLIS, TimeUnit.MILLISECONDS ) );
+        long elapsed = System.nanoTime() - start;
+        long reads = readCalls( service ) - readsBefore;
+        service.disconnect();
+
+        assertEquals( TOTAL_BYTES, received.get() );
+        System.out.printf( "%-6s packet=%5d bytes: %8.1f MB/s, %7d reads, %5d bytes/read%n",
+                           label, packetSize, TOTAL_BYTES / ( elapsed / 1e9 ) / ( 1024 * 1024 ), reads, TOTAL_BYTES / reads );
+        return reads;
+    }
+
+    private static long readCalls( BluetoothService service )
+    {
+        return service.getStats().getReadCalls();
+    }
+}